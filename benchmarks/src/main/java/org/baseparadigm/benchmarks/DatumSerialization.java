@@ -0,0 +1,81 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.MapDatum;
+import org.baseparadigm.Repo;
+import org.baseparadigm.SetDatum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing and eagerly parsing SetDatum and MapDatum. The datums being
+ * serialized are left mutable so toByteArray does the work every time
+ * instead of returning its cached bytes. MapDatumInflation compares
+ * toMap with the lazy view.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatumSerialization {
+    /**
+     * Members of the set, and fields of the map.
+     */
+    @Param({"16", "256", "4096"})
+    public int size;
+
+    private Repo repo;
+    private SetDatum set;
+    private ContentId setId;
+    private MapDatum map;
+    private ContentId mapId;
+
+    @Setup
+    public void setup() {
+        repo = new Repo();
+        set = new SetDatum(repo);
+        map = new MapDatum(repo);
+        for (int i = 0; i < size; i++) {
+            ContentId member = repo.put(("member " + i).getBytes(Repo.defaultCharset));
+            set.add(member);
+            map.put(repo.put(("field " + i).getBytes(Repo.defaultCharset)), member);
+        }
+        setId = repo.put(set.toByteArray());
+        mapId = repo.put(map.toByteArray());
+    }
+
+    @Benchmark
+    public byte[] setToByteArray() {
+        return set.toByteArray();
+    }
+
+    @Benchmark
+    public Set<ContentId> setToSet() {
+        return SetDatum.toSet(repo, setId);
+    }
+
+    @Benchmark
+    public byte[] mapToByteArray() {
+        return map.toByteArray();
+    }
+
+    @Benchmark
+    public SortedMap<ContentId, SetDatum> mapToMap() {
+        return MapDatum.toMap(repo, mapId);
+    }
+}
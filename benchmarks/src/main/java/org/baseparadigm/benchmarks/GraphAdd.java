@@ -0,0 +1,63 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.Graph;
+import org.baseparadigm.GraphDatum;
+import org.baseparadigm.Repo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Indexing a batch of triples into an empty Graph. Each iteration starts
+ * from a new Graph, since adding a datum twice is a no-op; the triples
+ * are generated and hashed beforehand so only indexing is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GraphAdd {
+    @Param({"1000", "100000"})
+    public int triples;
+
+    @Param({"0.0", "1.0"})
+    public double skew;
+
+    private Repo repo;
+    private List<GraphDatum> data;
+    private Graph graph;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        repo = new Repo();
+        data = new SyntheticGraph(repo, triples / 10, 1000, 100, skew, 7).next(triples);
+        for (GraphDatum gd : data)
+            gd.getId();
+    }
+
+    @Setup(Level.Iteration)
+    public void newGraph() {
+        graph = new Graph(repo);
+    }
+
+    @Benchmark
+    public Graph add() {
+        for (GraphDatum gd : data)
+            graph.add(gd);
+        return graph;
+    }
+}
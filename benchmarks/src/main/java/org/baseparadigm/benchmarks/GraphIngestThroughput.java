@@ -0,0 +1,92 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.Graph;
+import org.baseparadigm.GraphDatum;
+import org.baseparadigm.GraphIngest;
+import org.baseparadigm.Repo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Indexing a batch of triples into an empty Graph through a GraphIngest,
+ * from 1, 4 and 16 adding threads, until all of it is committed. Compare
+ * with GraphAdd, which adds from one thread without a GraphIngest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GraphIngestThroughput {
+    @Param({"100000"})
+    public int triples;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    /**
+     * Worker threads indexing postings; 0 for one per processor.
+     */
+    @Param({"0"})
+    public int partitions;
+
+    private Repo repo;
+    private List<GraphDatum> data;
+    private GraphIngest ingest;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        repo = new Repo();
+        data = new SyntheticGraph(repo, triples / 10, 1000, 100, 1.0, 7).next(triples);
+        for (GraphDatum gd : data)
+            gd.getId();
+    }
+
+    @Setup(Level.Iteration)
+    public void newGraph() {
+        Graph graph = new Graph(repo);
+        ingest = partitions == 0
+                ? new GraphIngest(graph)
+                : new GraphIngest(graph, partitions, GraphIngest.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        ingest.close();
+    }
+
+    @Benchmark
+    public Graph ingest() throws InterruptedException {
+        Thread[] adders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            adders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < data.size(); i += threads)
+                        ingest.add(data.get(i));
+                }
+            };
+            adders[t].start();
+        }
+        for (Thread t : adders)
+            t.join();
+        ingest.flush();
+        return ingest.graph;
+    }
+}
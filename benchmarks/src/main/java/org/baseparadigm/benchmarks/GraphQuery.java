@@ -0,0 +1,98 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.Graph;
+import org.baseparadigm.GraphDatum;
+import org.baseparadigm.Repo;
+import org.baseparadigm.SetDatum;
+import org.baseparadigm.SubjectPredicateObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conjunctive Graph queries over predicates drawn from a Zipf
+ * distribution: the planned query (Graph.query(GraphDatum)) against
+ * intersecting single term results in map order with retainAll, which is
+ * what Graph.query(GraphDatum) used to do. Each query pairs the most
+ * common predicate with a rare one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphQuery {
+    @Param({"10000", "100000"})
+    public int triples;
+
+    /**
+     * Zipf exponent of the predicate distribution.
+     */
+    @Param({"1.0", "1.5"})
+    public double skew;
+
+    private static final int PREDICATES = 1000;
+    private static final int QUERIES = 64;
+
+    private Graph graph;
+    private GraphDatum[] queries;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        Repo repo = new Repo();
+        graph = new Graph(repo);
+        SyntheticGraph synth = new SyntheticGraph(repo, triples / 10, PREDICATES, 100, skew, 42);
+        for (int i = 0; i < triples; i++)
+            graph.add(synth.next());
+        Random rand = new Random(43);
+        queries = new GraphDatum[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.PREDICATES, synth.predicate(0))
+                    .build(SubjectPredicateObject.PREDICATES, synth.predicate(1 + rand.nextInt(PREDICATES - 1)))
+                    .build(SubjectPredicateObject.OBJECTS, synth.object(rand.nextInt(synth.objects)));
+        }
+    }
+
+    private GraphDatum nextQuery() {
+        return queries[next++ & (QUERIES - 1)];
+    }
+
+    @Benchmark
+    public Set<ContentId> planned() {
+        return graph.query(nextQuery());
+    }
+
+    @Benchmark
+    public Set<ContentId> mapOrderRetainAll() {
+        GraphDatum query = nextQuery();
+        Set<ContentId> ret = null;
+        for (Map.Entry<ContentId, SetDatum> kv : query.entrySet()) {
+            SubjectPredicateObject k = kv.getKey().equals(query.repo.PREDICATESid)
+                    ? SubjectPredicateObject.PREDICATES : SubjectPredicateObject.OBJECTS;
+            for (ContentId v : kv.getValue()) {
+                if (ret == null)
+                    ret = graph.query(k, v);
+                else
+                    ret.retainAll(graph.query(k, v));
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,83 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.MapDatum;
+import org.baseparadigm.Repo;
+import org.baseparadigm.SetDatum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Inflating a stored MapDatum eagerly (MapDatum.toMap) against the lazy
+ * view (new MapDatum(repo, id)), both when every field is read and when
+ * only one is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapDatumInflation {
+    /**
+     * 6 is the size of a GraphDatum.
+     */
+    @Param({"6", "64", "1024"})
+    public int fields;
+
+    @Param({"1", "16"})
+    public int valuesPerField;
+
+    private Repo repo;
+    private ContentId mapId;
+    private ContentId oneKey;
+
+    @Setup
+    public void setup() {
+        repo = new Repo();
+        MapDatum map = new MapDatum(repo);
+        for (int f = 0; f < fields; f++) {
+            SetDatum values = new SetDatum(repo);
+            for (int v = 0; v < valuesPerField; v++)
+                values.add(repo.put(("field " + f + " value " + v).getBytes(Repo.defaultCharset)));
+            map.put(repo.put(("field " + f).getBytes(Repo.defaultCharset)), values.buildFinish());
+        }
+        mapId = repo.put(map.buildFinish());
+        oneKey = repo.idFor(("field " + (fields / 2)).getBytes(Repo.defaultCharset));
+    }
+
+    @Benchmark
+    public void eagerAllFields(Blackhole bh) {
+        for (Map.Entry<ContentId, SetDatum> e : MapDatum.toMap(repo, mapId).entrySet())
+            bh.consume(e.getValue().size());
+    }
+
+    @Benchmark
+    public void lazyAllFields(Blackhole bh) {
+        for (Map.Entry<ContentId, SetDatum> e : new MapDatum(repo, mapId).entrySet())
+            bh.consume(e.getValue().size());
+    }
+
+    @Benchmark
+    public int eagerOneField() {
+        return MapDatum.toMap(repo, mapId).get(oneKey).size();
+    }
+
+    @Benchmark
+    public int lazyOneField() {
+        return new MapDatum(repo, mapId).get(oneKey).size();
+    }
+}
@@ -0,0 +1,82 @@
+package org.baseparadigm.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.RepoFs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing through RepoFs, one file per value, in a temporary
+ * directory. Results depend heavily on the file system and the page
+ * cache; compare runs on the same machine only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepoFsReadWrite {
+    @Param({"64", "4096", "65536"})
+    public int valueBytes;
+
+    private static final int POOL = 1024;
+
+    private File dir;
+    private RepoFs repo;
+    private byte[][] values;
+    private ContentId[] ids;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("repofs-bench").toFile();
+        repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        Random rand = new Random(2);
+        values = new byte[POOL][valueBytes];
+        ids = new ContentId[POOL];
+        for (int i = 0; i < POOL; i++) {
+            rand.nextBytes(values[i]);
+            ids[i] = repo.put(values[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+
+    @Benchmark
+    public ContentId put() {
+        return repo.put(values[next++ & (POOL - 1)]);
+    }
+
+    @Benchmark
+    public byte[] get() {
+        return repo.get(ids[next++ & (POOL - 1)]);
+    }
+}
@@ -0,0 +1,63 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.Repo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing and storing values in the in-memory Repo. The values cycle
+ * through a fixed pool, so after the first pass put replaces existing
+ * entries and the map stays the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepoPut {
+    @Param({"64", "4096", "65536"})
+    public int valueBytes;
+
+    private static final int POOL = 1024;
+
+    private Repo repo;
+    private byte[][] values;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        repo = new Repo();
+        Random rand = new Random(1);
+        values = new byte[POOL][valueBytes];
+        for (byte[] v : values)
+            rand.nextBytes(v);
+    }
+
+    private byte[] nextValue() {
+        return values[next++ & (POOL - 1)];
+    }
+
+    @Benchmark
+    public ContentId idFor() {
+        return repo.idFor(nextValue());
+    }
+
+    @Benchmark
+    public ContentId put() {
+        return repo.put(nextValue());
+    }
+}
@@ -0,0 +1,70 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.baseparadigm.ContainmentIndex;
+import org.baseparadigm.GraphDatum;
+import org.baseparadigm.Repo;
+import org.baseparadigm.SubjectPredicateObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * GraphDatum.isSupersetOfAny over thousands of negatives, each a subject
+ * and predicate pair: checking every negative in the set against looking
+ * them up in a ContainmentIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SupersetOfAny {
+    @Param({"1000", "10000"})
+    public int negatives;
+
+    private static final int DATA = 64;
+
+    private Set<GraphDatum> set;
+    private ContainmentIndex index;
+    private GraphDatum[] data;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        SyntheticGraph synth = new SyntheticGraph(new Repo(), 10000, 1000, 100, 1.0, 23);
+        set = new HashSet<GraphDatum>();
+        for (int i = 0; i < negatives; i++)
+            set.add(new GraphDatum(synth.repo)
+                    .build(SubjectPredicateObject.SUBJECTS, synth.subject(synth.randomSubject()))
+                    .build(SubjectPredicateObject.PREDICATES, synth.predicate(synth.randomPredicate())));
+        index = new ContainmentIndex(set);
+        data = synth.next(DATA).toArray(new GraphDatum[DATA]);
+    }
+
+    private GraphDatum nextDatum() {
+        return data[next++ & (DATA - 1)];
+    }
+
+    @Benchmark
+    public boolean eachNegative() {
+        return nextDatum().isSupersetOfAny(set);
+    }
+
+    @Benchmark
+    public boolean containmentIndex() {
+        return nextDatum().isSupersetOfAny(index);
+    }
+}
@@ -0,0 +1,102 @@
+package org.baseparadigm.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.baseparadigm.ContentId;
+import org.baseparadigm.GraphDatum;
+import org.baseparadigm.Repo;
+import org.baseparadigm.SubjectPredicateObject;
+
+/**
+ * Generates reproducible graph data for the benchmarks: subjects and
+ * objects are uniform, predicates follow a Zipf distribution the way they
+ * do in real data (a few predicates in most triples, a long tail of rare
+ * ones). Keywords are named s0.., p0.. and o0.. and are stored in the repo
+ * as they are generated.
+ */
+public class SyntheticGraph {
+    public final Repo repo;
+    public final int subjects;
+    public final int predicates;
+    public final int objects;
+    private final double[] cumulative;
+    private final Random rand;
+
+    /**
+     * @param skew
+     * Zipf exponent of the predicate distribution; 0 is uniform.
+     */
+    public SyntheticGraph(Repo repo, int subjects, int predicates, int objects, double skew, long seed) {
+        this.repo = repo;
+        this.subjects = subjects;
+        this.predicates = predicates;
+        this.objects = objects;
+        this.cumulative = zipf(predicates, skew);
+        this.rand = new Random(seed);
+    }
+
+    private static double[] zipf(int n, double s) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, s);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; k++)
+            cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    public ContentId subject(int i) {
+        return word("s" + i);
+    }
+
+    /**
+     * @param rank
+     * 0 is the most common predicate.
+     */
+    public ContentId predicate(int rank) {
+        return word("p" + rank);
+    }
+
+    public ContentId object(int i) {
+        return word("o" + i);
+    }
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    public int randomSubject() {
+        return rand.nextInt(subjects);
+    }
+
+    public int randomPredicate() {
+        int i = Arrays.binarySearch(cumulative, rand.nextDouble());
+        return Math.min(predicates - 1, i < 0 ? -i - 1 : i);
+    }
+
+    public int randomObject() {
+        return rand.nextInt(objects);
+    }
+
+    /**
+     * A new subject predicate object triple, not yet stored.
+     */
+    public GraphDatum next() {
+        return new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, subject(randomSubject()))
+                .build(SubjectPredicateObject.PREDICATES, predicate(randomPredicate()))
+                .build(SubjectPredicateObject.OBJECTS, object(randomObject()));
+    }
+
+    public List<GraphDatum> next(int triples) {
+        List<GraphDatum> ret = new ArrayList<GraphDatum>(triples);
+        for (int i = 0; i < triples; i++)
+            ret.add(next());
+        return ret;
+    }
+}
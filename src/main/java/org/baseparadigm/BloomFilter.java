@@ -0,0 +1,81 @@
+package org.baseparadigm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over ContentIds, safe for concurrent use. The bit
+ * positions come straight from the id bytes by double hashing, since ids
+ * are already uniformly distributed.
+ */
+class BloomFilter {
+    private static final int MAGIC = 0x424c4d31; // BLM1
+    private final AtomicLongArray words;
+    private final long numBits;
+    private final int hashes;
+
+    /**
+     * Sized for expectedEntries at the given false positive rate.
+     */
+    BloomFilter(long expectedEntries, double falsePositiveRate) {
+        long bits = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        bits = Math.max(64, Math.min(bits, (long) Integer.MAX_VALUE * 64));
+        this.words = new AtomicLongArray((int) ((bits + 63) / 64));
+        this.numBits = words.length() * 64L;
+        this.hashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * Math.log(2)));
+    }
+
+    private BloomFilter(int hashes, AtomicLongArray words) {
+        this.words = words;
+        this.numBits = words.length() * 64L;
+        this.hashes = hashes;
+    }
+
+    void add(ContentId id) {
+        long h1 = id.bits(0);
+        long h2 = id.bits(8) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int w = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            while (((old = words.get(w)) & mask) == 0 && ! words.compareAndSet(w, old, old | mask))
+                ;
+        }
+    }
+
+    /**
+     * @return
+     * false only if id was never added.
+     */
+    boolean mightContain(ContentId id) {
+        long h1 = id.bits(0);
+        long h2 = id.bits(8) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            if ((words.get((int) (bit >>> 6)) & 1L << bit) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(hashes);
+        out.writeInt(words.length());
+        for (int i = 0; i < words.length(); i++)
+            out.writeLong(words.get(i));
+    }
+
+    static BloomFilter readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a bloom filter");
+        int hashes = in.readInt();
+        AtomicLongArray words = new AtomicLongArray(in.readInt());
+        for (int i = 0; i < words.length(); i++)
+            words.set(i, in.readLong());
+        return new BloomFilter(hashes, words);
+    }
+}
@@ -0,0 +1,256 @@
+package org.baseparadigm;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * A read only SortedSet over ids in the compressed set encoding written by
+ * SetDatum.toCompressedByteArray. The canonical form, which ids are hashed
+ * over, is still the plain one; this one is for storing and sending large
+ * sets.
+ *
+ * Version 1, all ints big endian:
+ * <pre>
+ * "BPS" 1 | keyLength | size | blockSize | blocks
+ * per block: its first id in full, then the int offset of its body from the first body
+ * per body: every id after the first as [bytes shared with the previous id][the rest]
+ * </pre>
+ * Ids are sorted, so neighbours share a prefix of about log256(size)
+ * bytes. The index of first ids is binary searched, so a lookup only
+ * decodes one block.
+ */
+class CompressedIdSet extends AbstractSet<ContentId> implements SortedSet<ContentId> {
+    static final byte[] MAGIC = { 'B', 'P', 'S' };
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 1 + 4 * 4;
+    static final int DEFAULT_BLOCK_SIZE = 128;
+
+    private final Repo repo;
+    private final ByteBuffer encoded;
+    private final int keyLength;
+    private final int size;
+    private final int blockSize;
+    private final int blocks;
+    private final int bodies;
+
+    /**
+     * @param encoded
+     * Read with absolute gets only, from index 0 to its limit.
+     */
+    CompressedIdSet(Repo repo, ByteBuffer encoded) {
+        this.repo = repo;
+        this.encoded = encoded;
+        if (encoded.limit() < HEADER_SIZE)
+            throw new IllegalArgumentException("too short to be a compressed set");
+        for (int i = 0; i < MAGIC.length; i++)
+            if (encoded.get(i) != MAGIC[i])
+                throw new IllegalArgumentException("not a compressed set");
+        if (encoded.get(MAGIC.length) != VERSION)
+            throw new IllegalArgumentException("unknown compressed set version "+ encoded.get(MAGIC.length));
+        keyLength = encoded.getInt(MAGIC.length + 1);
+        size = encoded.getInt(MAGIC.length + 5);
+        blockSize = encoded.getInt(MAGIC.length + 9);
+        blocks = encoded.getInt(MAGIC.length + 13);
+        if (keyLength != repo.keyLength)
+            throw new IllegalArgumentException("the set has "+ keyLength +" byte ids but the repo "+ repo.keyLength);
+        if (blockSize < 1 || blocks != (size + blockSize - 1) / blockSize)
+            throw new IllegalArgumentException("corrupt compressed set header");
+        bodies = HEADER_SIZE + blocks * (keyLength + 4);
+    }
+
+    /**
+     * Encodes ids serialized the canonical way: sorted and back to back.
+     */
+    static byte[] encode(byte[] canonical, int keyLength, int blockSize) {
+        if (keyLength > 255)
+            throw new IllegalArgumentException("prefix lengths are stored in a byte");
+        if (blockSize < 1)
+            throw new IllegalArgumentException("blockSize must be positive");
+        int size = canonical.length / keyLength;
+        int blocks = (size + blockSize - 1) / blockSize;
+        ByteBuffer index = ByteBuffer.allocate(blocks * (keyLength + 4));
+        // no body is bigger than its ids plus a prefix byte each
+        ByteBuffer body = ByteBuffer.allocate(canonical.length + size);
+        for (int b = 0; b < blocks; b++) {
+            int first = b * blockSize;
+            index.put(canonical, first * keyLength, keyLength);
+            index.putInt(body.position());
+            for (int i = first + 1; i < Math.min(first + blockSize, size); i++) {
+                int shared = sharedPrefix(canonical, (i - 1) * keyLength, i * keyLength, keyLength);
+                body.put((byte) shared);
+                body.put(canonical, i * keyLength + shared, keyLength - shared);
+            }
+        }
+        ByteBuffer ret = ByteBuffer.allocate(HEADER_SIZE + index.position() + body.position());
+        ret.put(MAGIC).put(VERSION).putInt(keyLength).putInt(size).putInt(blockSize).putInt(blocks);
+        ret.put(index.array(), 0, index.position());
+        ret.put(body.array(), 0, body.position());
+        return ret.array();
+    }
+
+    private static int sharedPrefix(byte[] ids, int a, int b, int keyLength) {
+        int i = 0;
+        while (i < keyLength && ids[a + i] == ids[b + i])
+            i++;
+        return i;
+    }
+
+    int blockCount() {
+        return blocks;
+    }
+
+    private int indexOffset(int block) {
+        return HEADER_SIZE + block * (keyLength + 4);
+    }
+
+    private int blockLength(int block) {
+        return Math.min(blockSize, size - block * blockSize);
+    }
+
+    /**
+     * The ids of one block, decoded into the canonical form.
+     */
+    byte[] decodeBlock(int block) {
+        int n = blockLength(block);
+        byte[] ret = new byte[n * keyLength];
+        ByteBuffer dup = encoded.duplicate();
+        dup.position(indexOffset(block));
+        dup.get(ret, 0, keyLength);
+        dup.position(bodies + encoded.getInt(indexOffset(block) + keyLength));
+        for (int i = 1; i < n; i++) {
+            int shared = dup.get() & 0xff;
+            System.arraycopy(ret, (i - 1) * keyLength, ret, i * keyLength, shared);
+            dup.get(ret, i * keyLength + shared, keyLength - shared);
+        }
+        return ret;
+    }
+
+    /**
+     * The last block whose first id is not greater than key, or -1.
+     */
+    private int blockFor(ContentId key) {
+        int lo = 0, hi = blocks - 1, ret = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.compareTo(encoded, indexOffset(mid)) >= 0) {
+                ret = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (! (o instanceof ContentId) || ((ContentId) o).repo != repo)
+            return false;
+        ContentId key = (ContentId) o;
+        int b = blockFor(key);
+        if (b < 0)
+            return false;
+        byte[] ids = decodeBlock(b);
+        ByteBuffer wrapped = ByteBuffer.wrap(ids);
+        for (int offset = 0; offset < ids.length; offset += keyLength) {
+            int c = key.compareTo(wrapped, offset);
+            if (c == 0)
+                return true;
+            if (c < 0)
+                return false;
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<ContentId> iterator() {
+        return new Iterator<ContentId>() {
+            private int block = 0;
+            private ByteBuffer ids = ByteBuffer.allocate(0);
+            private int offset = 0;
+            @Override
+            public boolean hasNext() {
+                return offset < ids.limit() || block < blocks;
+            }
+            @Override
+            public ContentId next() {
+                if (offset >= ids.limit()) {
+                    if (block >= blocks)
+                        throw new NoSuchElementException();
+                    ids = ByteBuffer.wrap(decodeBlock(block++));
+                    offset = 0;
+                }
+                ContentId ret = ContentId.read(repo, ids, offset);
+                offset += keyLength;
+                return ret;
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("compressed id sets are read only");
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super ContentId> comparator() {
+        return null;
+    }
+
+    @Override
+    public ContentId first() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        return ContentId.read(repo, encoded, indexOffset(0));
+    }
+
+    @Override
+    public ContentId last() {
+        if (size == 0)
+            throw new NoSuchElementException();
+        byte[] ids = decodeBlock(blocks - 1);
+        return ContentId.wrap(repo, Arrays.copyOfRange(ids, ids.length - keyLength, ids.length));
+    }
+
+    /**
+     * Range views are over the decoded canonical form.
+     */
+    @Override
+    public SortedSet<ContentId> headSet(ContentId end) {
+        return decoded().headSet(end);
+    }
+
+    @Override
+    public SortedSet<ContentId> tailSet(ContentId start) {
+        return decoded().tailSet(start);
+    }
+
+    @Override
+    public SortedSet<ContentId> subSet(ContentId start, ContentId end) {
+        return decoded().subSet(start, end);
+    }
+
+    private PackedIdSet decoded() {
+        return new PackedIdSet(repo, ByteBuffer.wrap(toByteArray()));
+    }
+
+    /**
+     * The canonical form: every id, sorted and back to back.
+     */
+    byte[] toByteArray() {
+        byte[] ret = new byte[size * keyLength];
+        for (int b = 0; b < blocks; b++) {
+            byte[] ids = decodeBlock(b);
+            System.arraycopy(ids, 0, ret, b * blockSize * keyLength, ids.length);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,209 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A set of GraphDatum that answers whether any of them is a subset of a
+ * given GraphDatum, as in GraphDatum.isSupersetOf, without checking every
+ * one of them.
+ *
+ * Each registered datum is filed under one of its keywords, the one whose
+ * list is shortest when it is added. A query only looks at the lists of
+ * its own keywords, since a subset has to share the keyword it is filed
+ * under. Each candidate also carries a 64 bit signature of its keywords;
+ * unless every bit of it is in the query's signature some keyword is
+ * missing, and the candidate is rejected without touching any sets.
+ *
+ * Queries may run concurrently with each other and with add and remove.
+ */
+public class ContainmentIndex {
+    private static final SubjectPredicateObject[] FIELDS = SubjectPredicateObject.values();
+
+    private final Map<SubjectPredicateObject, Map<ContentId, List<Entry>>> filed =
+            new EnumMap<SubjectPredicateObject, Map<ContentId, List<Entry>>>(SubjectPredicateObject.class);
+    // registered data with no keywords at all; they are subsets of anything
+    private final List<Entry> unfiled = new CopyOnWriteArrayList<Entry>();
+    private volatile int size = 0;
+
+    public ContainmentIndex() {
+        for (SubjectPredicateObject spo : FIELDS)
+            filed.put(spo, new ConcurrentHashMap<ContentId, List<Entry>>());
+    }
+
+    public ContainmentIndex(Iterable<GraphDatum> subsets) {
+        this();
+        for (GraphDatum gd : subsets)
+            add(gd);
+    }
+
+    /**
+     * A registered datum, with its keywords copied out by field.
+     */
+    private static class Entry {
+        final GraphDatum datum;
+        final ContentId[][] terms = new ContentId[FIELDS.length][];
+        final long signature;
+        SubjectPredicateObject field;
+        ContentId keyword;
+
+        Entry(GraphDatum datum) {
+            this.datum = datum;
+            long sig = 0;
+            for (SubjectPredicateObject spo : FIELDS) {
+                Set<ContentId> values = datum.get(spo);
+                if (values == null || values.isEmpty())
+                    continue;
+                ContentId[] these = values.toArray(new ContentId[values.size()]);
+                terms[spo.ordinal()] = these;
+                for (ContentId keyword : these)
+                    sig |= bit(spo, keyword);
+            }
+            this.signature = sig;
+        }
+
+        boolean isSubsetOf(Set<ContentId>[] fields) {
+            for (int f = 0; f < terms.length; f++) {
+                if (terms[f] == null)
+                    continue;
+                if (fields[f] == null)
+                    return false;
+                for (ContentId keyword : terms[f])
+                    if (! fields[f].contains(keyword))
+                        return false;
+            }
+            return true;
+        }
+    }
+
+    private static long bit(SubjectPredicateObject field, ContentId keyword) {
+        int h = keyword.hashCode() * 31 + field.ordinal();
+        return 1L << ((h ^ (h >>> 16)) & 63);
+    }
+
+    /**
+     * Registers gd; registering the same datum twice keeps two copies.
+     */
+    public synchronized void add(GraphDatum gd) {
+        Entry e = new Entry(gd);
+        int shortest = Integer.MAX_VALUE;
+        for (SubjectPredicateObject spo : FIELDS) {
+            ContentId[] these = e.terms[spo.ordinal()];
+            if (these == null)
+                continue;
+            Map<ContentId, List<Entry>> byKeyword = filed.get(spo);
+            for (ContentId keyword : these) {
+                List<Entry> list = byKeyword.get(keyword);
+                int length = list == null ? 0 : list.size();
+                if (length < shortest) {
+                    e.field = spo;
+                    e.keyword = keyword;
+                    shortest = length;
+                }
+            }
+        }
+        if (e.keyword == null) {
+            unfiled.add(e);
+        } else {
+            Map<ContentId, List<Entry>> byKeyword = filed.get(e.field);
+            List<Entry> list = byKeyword.get(e.keyword);
+            if (list == null) {
+                list = new CopyOnWriteArrayList<Entry>();
+                byKeyword.put(e.keyword, list);
+            }
+            list.add(e);
+        }
+        size++;
+    }
+
+    /**
+     * Unregisters one datum with the same id as gd.
+     *
+     * @return
+     * false if there was none.
+     */
+    public synchronized boolean remove(GraphDatum gd) {
+        Entry probe = new Entry(gd);
+        ContentId id = gd.getId();
+        List<List<Entry>> lists = new ArrayList<List<Entry>>();
+        lists.add(unfiled);
+        for (SubjectPredicateObject spo : FIELDS) {
+            ContentId[] these = probe.terms[spo.ordinal()];
+            if (these != null)
+                for (ContentId keyword : these) {
+                    List<Entry> list = filed.get(spo).get(keyword);
+                    if (list != null)
+                        lists.add(list);
+                }
+        }
+        for (List<Entry> list : lists)
+            for (Entry e : list)
+                if (e.signature == probe.signature && e.datum.getId().equals(id)) {
+                    list.remove(e);
+                    if (list.isEmpty() && e.keyword != null)
+                        filed.get(e.field).remove(e.keyword);
+                    size--;
+                    return true;
+                }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return
+     * true if gd is a superset of any registered datum.
+     */
+    public boolean hasSubsetOf(GraphDatum gd) {
+        return findSubsetOf(gd) != null;
+    }
+
+    /**
+     * @return
+     * a registered datum gd is a superset of, or null if there is none.
+     */
+    public GraphDatum findSubsetOf(GraphDatum gd) {
+        if (! unfiled.isEmpty()) {
+            try {
+                return unfiled.get(0).datum;
+            } catch (IndexOutOfBoundsException removedMeanwhile) {
+                // then nothing is unfiled; look through the filed ones
+            }
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Set<ContentId>[] fields = new Set[FIELDS.length];
+        long sig = 0;
+        for (SubjectPredicateObject spo : FIELDS) {
+            Set<ContentId> values = gd.get(spo);
+            if (values == null || values.isEmpty())
+                continue;
+            fields[spo.ordinal()] = values;
+            for (ContentId keyword : values)
+                sig |= bit(spo, keyword);
+        }
+        for (SubjectPredicateObject spo : FIELDS) {
+            Set<ContentId> values = fields[spo.ordinal()];
+            if (values == null)
+                continue;
+            Map<ContentId, List<Entry>> byKeyword = filed.get(spo);
+            if (byKeyword.isEmpty())
+                continue;
+            for (ContentId keyword : values) {
+                List<Entry> candidates = byKeyword.get(keyword);
+                if (candidates == null)
+                    continue;
+                for (Entry e : candidates)
+                    if ((e.signature & ~sig) == 0 && e.isSubsetOf(fields))
+                        return e.datum;
+            }
+        }
+        return null;
+    }
+}
@@ -1,72 +1,135 @@
 package org.baseparadigm;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
- * A BigInteger aware of the length of byte arrays.
- * 
+ * A fixed width id, exactly as long as the key length of its repo.
+ * The bytes are kept as the id algorithm produced them, so equals, hashCode
+ * and compareTo never allocate, and serializing an id is a single copy.
+ * Ids order the same way the two's complement integers they encode do; use
+ * toBigInteger() where arithmetic is needed.
+ *
  * @author travis@traviswellman.com
- * 
+ *
  */
-public class ContentId extends BigInteger implements ToByteArray {
+public final class ContentId implements Comparable<ContentId>, ToByteArray {
     public final Repo repo;
-
-    private static final long serialVersionUID = 492010517573211305L;
+    private final byte[] bytes;
+    private final int hash;
 
     /**
      * Similar to new BigInteger(bytes);
-     * 
+     *
      * @param repo
      *            The repo that defines the key length.
-     * 
+     *
      * @param bytes
      *            The integer number of the id in byte form. This array should
      *            have the length of the key length for the BaseParadigm given.
+     *            It is copied.
      */
     public ContentId(Repo repo, byte[] bytes) {
-        super(bytes);
-        assert repo.keyLength == bytes.length;
-        this.repo = repo;
+        this(bytes.clone(), repo);
     }
 
     public ContentId(Repo repo, BigInteger key) {
-        super(key.toByteArray());
-        assert key.toByteArray().length <= repo.keyLength;
+        this(pad(repo, key), repo);
+    }
+
+    private ContentId(byte[] bytes, Repo repo) {
+        assert repo.keyLength == bytes.length;
         this.repo = repo;
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
     }
 
-    private static boolean allZeroes(byte[] ba) {
-        for (byte b : ba)
-            if (b != 0)
-                return false;
-        return true;
+    /**
+     * Like the public constructor but takes ownership of the array instead of
+     * copying it; only for arrays nobody else holds, like a fresh digest.
+     */
+    static ContentId wrap(Repo repo, byte[] bytes) {
+        return new ContentId(bytes, repo);
     }
 
-    // static because the constructor uses it to call super
-    // ie, the repo property on ContentID instances is not yet set
-    private static byte[] pad(Repo repo, byte[] padBytes) {
+    /**
+     * Sign extends the two's complement form of key to the repo's key length.
+     */
+    private static byte[] pad(Repo repo, BigInteger key) {
+        byte[] orig = key.toByteArray();
+        if (repo.keyLength < orig.length)
+            throw new IllegalArgumentException(
+                    "Somehow you obtained an id bigger than your repo supports.");
         byte[] keyBytes = new byte[repo.keyLength];
-        assert allZeroes(keyBytes) :
-            "this java implementation fills new byte arrays with: "+ keyBytes[0];
-        System.arraycopy(padBytes, 0, keyBytes, keyBytes.length
-                - padBytes.length, padBytes.length);
+        if (key.signum() < 0)
+            Arrays.fill(keyBytes, 0, keyBytes.length - orig.length, (byte) -1);
+        System.arraycopy(orig, 0, keyBytes, keyBytes.length - orig.length,
+                orig.length);
         return keyBytes;
     }
 
     /**
-     * Like BigInteger's toByteArray, but ensures that the length of the byte
-     * array is correct.
+     * A copy of the id bytes; always the key length of the repo.
      */
     @Override
     public byte[] toByteArray() {
-        byte[] orig = super.toByteArray();
-        if (repo.keyLength < orig.length)
-            throw new RuntimeException(
-                    "Somehow you obtained an id bigger than your repo supports.");
-        // there is a > 1/256 chance of padding being necessary
-        byte[] ba = pad(repo, orig);
-        assert super.equals(new BigInteger(ba));
-        return ba;
+        return bytes.clone();
+    }
+
+    /**
+     * Copies the id into dest without any intermediate array.
+     *
+     * @return
+     * the offset just past the id.
+     */
+    public int writeTo(byte[] dest, int offset) {
+        System.arraycopy(bytes, 0, dest, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    /**
+     * Relative put of the id into the buffer.
+     */
+    public ByteBuffer writeTo(ByteBuffer dest) {
+        return dest.put(bytes);
+    }
+
+    /**
+     * The number of bytes in this id.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * The integer this id encodes, for arithmetic against Repo.getMaxRange().
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(bytes);
+    }
+
+    /**
+     * Eight bytes of the id starting at offset, big endian, zero padded past
+     * the end; ids are digests, so these are as good as random hash bits.
+     */
+    long bits(int offset) {
+        long ret = 0;
+        for (int i = offset; i < offset + 8; i++)
+            ret = ret << 8 | (i < bytes.length ? bytes[i] & 0xff : 0);
+        return ret;
+    }
+
+    /**
+     * The same id in another repo with the same IdScheme, sharing the bytes.
+     */
+    ContentId in(Repo other) {
+        if (other == repo)
+            return this;
+        if (other.keyLength != bytes.length)
+            throw new IllegalArgumentException("a "+ bytes.length +" byte id can't be used in a repo with "
+                    + other.keyLength +" byte keys");
+        return new ContentId(bytes, other);
     }
 
     /**
@@ -78,14 +141,84 @@ public class ContentId extends BigInteger implements ToByteArray {
 
     @Override
     public boolean equals(Object o) {
+        if (o == this)
+            return true;
         if (!(o instanceof ContentId))
-            return o instanceof BigInteger && o.equals(this);
-        return o instanceof ContentId && ((ContentId) o).repo == this.repo
-                && super.equals(o);
+            return false;
+        ContentId other = (ContentId) o;
+        return other.repo == this.repo && other.hash == this.hash
+                && Arrays.equals(other.bytes, this.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public int compareTo(ContentId o) {
+        return compare(bytes, 0, o.bytes, 0, Math.min(bytes.length, o.bytes.length));
+    }
+
+    /**
+     * Compares two ids of length len stored at the given offsets the way
+     * compareTo does: the first byte is signed and the rest are unsigned.
+     */
+    static int compare(byte[] a, int aOffset, byte[] b, int bOffset, int len) {
+        if (len == 0)
+            return 0;
+        if (a[aOffset] != b[bOffset])
+            return a[aOffset] < b[bOffset] ? -1 : 1;
+        for (int i = 1; i < len; i++) {
+            int x = a[aOffset + i] & 0xff;
+            int y = b[bOffset + i] & 0xff;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * compareTo against an id stored at offset in buf, without copying it out.
+     */
+    int compareTo(ByteBuffer buf, int offset) {
+        byte first = buf.get(offset);
+        if (bytes[0] != first)
+            return bytes[0] < first ? -1 : 1;
+        for (int i = 1; i < bytes.length; i++) {
+            int x = bytes[i] & 0xff;
+            int y = buf.get(offset + i) & 0xff;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
     }
 
+    /**
+     * The id of the repo's key length stored at offset in buf; buf's position is untouched.
+     */
+    static ContentId read(Repo repo, ByteBuffer buf, int offset) {
+        byte[] b = new byte[repo.keyLength];
+        for (int i = 0; i < b.length; i++)
+            b[i] = buf.get(offset + i);
+        return wrap(repo, b);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Ids are immutable, so there is nothing to copy.
+     */
     @Override
     public ContentId clone() {
-        return new ContentId(repo, toByteArray());
+        return this;
     }
 }
@@ -0,0 +1,71 @@
+package org.baseparadigm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An IdScheme using any MessageDigest algorithm available to the JVM,
+ * optionally truncated to fewer bytes than the digest produces.
+ */
+public class DigestIdScheme implements IdScheme {
+    private final String algorithm;
+    private final int keyLength;
+    private final boolean truncated;
+
+    /**
+     * @param keyLength
+     * At most the digest length of the algorithm.
+     */
+    public DigestIdScheme(String algorithm, int keyLength) {
+        int digestLength = instance(algorithm).getDigestLength();
+        if (keyLength < 1 || keyLength > digestLength)
+            throw new IllegalArgumentException("can't take "+ keyLength +" byte ids from "
+                    + digestLength +" byte "+ algorithm +" digests");
+        this.algorithm = algorithm;
+        this.keyLength = keyLength;
+        this.truncated = keyLength < digestLength;
+    }
+
+    /**
+     * Uses the whole digest.
+     */
+    public DigestIdScheme(String algorithm) {
+        this(algorithm, instance(algorithm).getDigestLength());
+    }
+
+    private static MessageDigest instance(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm +" is not available", e);
+        }
+    }
+
+    /**
+     * The algorithm name, followed by the key length in brackets when the
+     * digest is truncated, like SHA-512[32].
+     */
+    @Override
+    public String name() {
+        return truncated ? algorithm +"["+ keyLength +"]" : algorithm;
+    }
+
+    @Override
+    public int keyLength() {
+        return keyLength;
+    }
+
+    @Override
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("depending on "+ algorithm +" being available.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
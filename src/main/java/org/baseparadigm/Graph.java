@@ -1,37 +1,88 @@
 package org.baseparadigm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 
 public class Graph extends SetDatum {
+    /**
+     * The default cap on direct memory used by the indexes.
+     */
+    public static final long DEFAULT_MAX_INDEX_BYTES = 1L << 30;
+    
     public Set<Repo> repos = new HashSet<Repo>();
 
-    public MapDatum subjIdx;
-    public MapDatum predIdx;
-    public MapDatum objeIdx;
-    public MapDatum assuIdx;
-    public MapDatum authIdx;
-    public MapDatum pattIdx;
+    public PostingIndex subjIdx;
+    public PostingIndex predIdx;
+    public PostingIndex objeIdx;
+    public PostingIndex assuIdx;
+    public PostingIndex authIdx;
+    public PostingIndex pattIdx;
 
     /**
      * An index of indices.
      */
-    public Map<SubjectPredicateObject, MapDatum> idx = new HashMap<SubjectPredicateObject, MapDatum>();
+    public Map<SubjectPredicateObject, PostingIndex> idx = new EnumMap<SubjectPredicateObject, PostingIndex>(SubjectPredicateObject.class);
+    
+    /**
+     * Posting lists hold ordinals instead of ids; this maps them back. It is
+     * read without locking, so it grows by whole chunks and the directory
+     * is replaced rather than resized.
+     */
+    private volatile ContentId[][] datums = new ContentId[0][];
+    private static final int DATUM_CHUNK_SHIFT = 12;
+    private static final int DATUM_CHUNK = 1 << DATUM_CHUNK_SHIFT;
+    // guarded by this
+    private int datumCount = 0;
+    private final Map<ContentId, Integer> ordinals = new ConcurrentHashMap<ContentId, Integer>();
+    /**
+     * Every datum with a lower ordinal is fully indexed; queries see only those.
+     */
+    private volatile int committed = 0;
+    /**
+     * While set, adds go through it.
+     */
+    private volatile GraphIngest ingest = null;
+    /**
+     * While set, newly indexed data are published to it.
+     */
+    private volatile Subscriptions subscriptions = null;
+    /**
+     * Set when a GraphIngest failed with data only partly indexed; the
+     * watermark can't move past those, so the graph takes no more.
+     */
+    private volatile Throwable failure = null;
+    private final OffHeapArena arena;
 
     public Graph(Repo r) {
+        this(r, DEFAULT_MAX_INDEX_BYTES);
+    }
+    
+    /**
+     * @param maxIndexBytes
+     * The most direct memory the posting lists may use; add throws an
+     * IllegalStateException once it is used up.
+     */
+    public Graph(Repo r, long maxIndexBytes) {
         super(r);
         repos.add(r);
+        arena = new OffHeapArena(maxIndexBytes);
         
-        subjIdx = new MapDatum(r);
-        predIdx = new MapDatum(r);
-        objeIdx = new MapDatum(r);
-        assuIdx = new MapDatum(r);
-        authIdx = new MapDatum(r);
-        pattIdx = new MapDatum(r);
+        subjIdx = new PostingIndex(arena);
+        predIdx = new PostingIndex(arena);
+        objeIdx = new PostingIndex(arena);
+        assuIdx = new PostingIndex(arena);
+        authIdx = new PostingIndex(arena);
+        pattIdx = new PostingIndex(arena);
 
         idx.put(SubjectPredicateObject.SUBJECTS,    subjIdx);
         idx.put(SubjectPredicateObject.PREDICATES,  predIdx);
@@ -57,76 +108,342 @@ public class Graph extends SetDatum {
      * Content that has been registered in the index to contain the query.
      */
     public Set<ContentId> query(SubjectPredicateObject which, ContentId contentId){
-        switch (which) {
-        case SUBJECTS:
-            return nullToEmptySet(subjIdx.get(contentId));
-        case PREDICATES:
-            return nullToEmptySet(predIdx.get(contentId));
-        case OBJECTS:
-            return nullToEmptySet(objeIdx.get(contentId));
-        case ASSUMPTIONS:
-            return nullToEmptySet(assuIdx.get(contentId));
-        case AUTHORS:
-            return nullToEmptySet(authIdx.get(contentId));
-        case PATTERNS:
-            return nullToEmptySet(authIdx.get(contentId));
-        default:
-            assert which == null : "which is not null? which: "+ which.toString() +"\nThis code should only be reachable with a null which.";
+        if (which == null)
             throw new NullPointerException("which must be an instance of the enumeration SubjectPredicateObject");
+        return resolve(idx.get(which).get(contentId));
+    }
+    
+    /**
+     * The ids for the ordinals in a posting list, in a new set.
+     */
+    private Set<ContentId> resolve(PostingList postings) {
+        Set<ContentId> ret = new HashSet<ContentId>();
+        if (postings == null)
+            return ret;
+        int limit = committed;
+        PostingList.Cursor c = postings.cursor();
+        for (int ord = c.next(); ord >= 0 && ord < limit; ord = c.next())
+            ret.add(datumAt(ord));
+        return ret;
+    }
+    
+    /**
+     * How many graph data have been indexed; the next one gets this ordinal.
+     */
+    synchronized int datumCount() {
+        return datumCount;
+    }
+    
+    boolean isIndexed(ContentId id) {
+        return ordinals.containsKey(id);
+    }
+    
+    ContentId datumAt(int ordinal) {
+        return datums[ordinal >>> DATUM_CHUNK_SHIFT][ordinal & (DATUM_CHUNK - 1)];
+    }
+    
+    /**
+     * Gives id the next ordinal, unless it already has one.
+     * 
+     * @return
+     * The new ordinal, or -1 if id already had one.
+     */
+    synchronized int assign(ContentId id) {
+        if (ordinals.containsKey(id))
+            return -1;
+        int ordinal = datumCount++;
+        int chunk = ordinal >>> DATUM_CHUNK_SHIFT;
+        if (chunk == datums.length) {
+            ContentId[][] grown = Arrays.copyOf(datums, chunk + 1);
+            grown[chunk] = new ContentId[DATUM_CHUNK];
+            datums = grown;
+        }
+        datums[chunk][ordinal & (DATUM_CHUNK - 1)] = id;
+        ordinals.put(id, ordinal);
+        return ordinal;
+    }
+    
+    /**
+     * Makes every ordinal below upTo visible to queries.
+     */
+    void commit(int upTo) {
+        committed = upTo;
+    }
+    
+    /**
+     * How many graph data queries can see.
+     */
+    public int getCommitted() {
+        return committed;
+    }
+    
+    /**
+     * Gives id the next ordinal without indexing it, for a GraphJournal
+     * loading a checkpoint that brings its postings separately.
+     */
+    void restore(ContentId id) {
+        int ordinal;
+        synchronized (this) {
+            ordinal = assign(id);
+            if (ordinal < 0)
+                throw new IllegalStateException(id +" was restored twice");
+            commit(ordinal + 1);
+        }
+        // nothing to match, but subscribers must not wait for it
+        publish(ordinal, null);
+    }
+    
+    synchronized void attach(GraphIngest concurrent) {
+        checkFailure();
+        if (ingest != null)
+            throw new IllegalStateException("the graph already has a GraphIngest");
+        ingest = concurrent;
+    }
+    
+    synchronized void detach(GraphIngest concurrent) {
+        if (ingest == concurrent)
+            ingest = null;
+        notifyAll();
+    }
+    
+    void fail(Throwable t) {
+        failure = t;
+    }
+    
+    private void checkFailure() {
+        if (failure != null)
+            throw new IllegalStateException("indexing failed", failure);
+    }
+    
+    /**
+     * Waits while a closing GraphIngest is still attached.
+     */
+    private synchronized void awaitDetach(GraphIngest concurrent) {
+        boolean interrupted = false;
+        while (ingest == concurrent) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    /**
+     * @return
+     * The first ordinal s will be published; everything committed from
+     * then on is.
+     */
+    synchronized int attach(Subscriptions s) {
+        if (subscriptions != null)
+            throw new IllegalStateException("the graph already has Subscriptions");
+        // set before reading committed: a GraphIngest commits without this
+        // lock, then publishes if it sees s
+        subscriptions = s;
+        return committed;
+    }
+    
+    synchronized void detach(Subscriptions s) {
+        if (subscriptions == s)
+            subscriptions = null;
+    }
+    
+    /**
+     * Hands a newly committed datum to the subscriptions, if there are any.
+     * Never blocks, so callers publish after letting go of their locks, in
+     * whatever order; the ordinal puts the data back in order.
+     */
+    void publish(int ordinal, GraphDatum indexed) {
+        Subscriptions s = subscriptions;
+        if (s != null)
+            s.publish(ordinal, indexed);
+    }
+    
+    /**
+     * Direct memory reserved by the indexes so far.
+     */
+    public long getIndexBytes() {
+        return arena.getReservedBytes();
     }
 
     /**
      * Index the graph datum for future queries, and also alert subscriptions for which their pattern matches.
+     * Subscriptions get it once it is visible to queries.
      * @param toIndex
      */
     public void add(GraphDatum toIndex) {
+        while (true) {
+            GraphIngest concurrent = ingest;
+            if (concurrent != null) {
+                if (concurrent.offer(toIndex)) {
+                    // visible to queries when this returns, as without one
+                    concurrent.flush();
+                    return;
+                }
+                // closing; once its workers stop the lists are ours again
+                awaitDetach(concurrent);
+                continue;
+            }
+            if (addAlone(toIndex))
+                return;
+        }
+    }
+    
+    /**
+     * Indexes toIndex on the calling thread.
+     * 
+     * @return
+     * false if a GraphIngest was attached meanwhile, and nothing was done.
+     */
+    private boolean addAlone(GraphDatum toIndex) {
+        ContentId theId = store(toIndex);
+        int ordinal;
+        synchronized (this) {
+            // attach takes this lock, so its workers can't be appending now
+            if (ingest != null)
+                return false;
+            checkFailure();
+            if (isIndexed(theId))
+                return true;
+            // room for every posting first, so running into the arena's cap
+            // leaves no ordinal behind with only some of its postings
+            List<PostingIndex> indexes = new ArrayList<PostingIndex>();
+            List<ContentId> keywords = new ArrayList<ContentId>();
+            List<PostingList> reserved = new ArrayList<PostingList>();
+            try {
+                for (SubjectPredicateObject spoaap : SubjectPredicateObject.values() ) {
+                    // each value will become a keyword. well, not a word, but same concept.
+                    Set<ContentId> values = toIndex.get(spoaap);
+                    if (values == null)
+                        continue;
+                    // one of the six indexes
+                    PostingIndex oneIdx = idx.get(spoaap);
+                    for (ContentId keyword : values) {
+                        indexes.add(oneIdx);
+                        keywords.add(keyword);
+                        reserved.add(oneIdx.reserve(keyword));
+                    }
+                }
+            } catch (RuntimeException e) {
+                for (PostingList pl : reserved)
+                    pl.unreserve();
+                throw e;
+            }
+            ordinal = assign(theId);
+            for (int i = 0; i < reserved.size(); i++)
+                indexes.get(i).add(keywords.get(i), reserved.get(i), ordinal);
+            commit(ordinal + 1);
+        }
+        publish(ordinal, toIndex);
+        return true;
+    }
+    
+    /**
+     * Stores toIndex in every repo of the graph, writing to the others in
+     * parallel on Repo.ingestPool.
+     * 
+     * @return
+     * The id of toIndex in its own repo.
+     */
+    ContentId store(final GraphDatum toIndex) {
         assert someEqual(repos, toIndex.repo);
         ContentId theId = toIndex.getId(); // id() is where toIndex gets stored in toIndex.repo
-        for (Repo r : repos) // store in the rest of the repos too
-            if (toIndex.repo != r) r.put(toIndex);
-        // find possible subscriptions
-        for (SubjectPredicateObject spoaap : SubjectPredicateObject.values() ) {
-            // each value will become a keyword. well, not a word, but same concept.
-            Set<ContentId> values = toIndex.get(spoaap);
-            // one of the five indexes
-            MapDatum oneIdx = idx.get(spoaap);
-            for (ContentId keyword : values)
-                oneIdx.put(keyword, theId);
+        List<ForkJoinTask<?>> puts = new ArrayList<ForkJoinTask<?>>();
+        Repo last = null;
+        for (final Repo r : repos) { // store in the rest of the repos too
+            if (toIndex.repo == r)
+                continue;
+            if (last != null) {
+                final Repo other = last;
+                puts.add(Repo.ingestPool.submit(new Runnable() {
+                    public void run() {
+                        other.put(toIndex);
+                    }
+                }));
+            }
+            last = r;
         }
-        // TODO publish indexed datum to subscriptions?
+        if (last != null)
+            last.put(toIndex);
+        for (ForkJoinTask<?> put : puts)
+            put.join();
+        return theId;
     }
 
-    private static Set<ContentId> nullToEmptySet(Set<ContentId> s) {
-        if (s == null) return new HashSet<ContentId>();
-        return s;
-    }
-    
     
     /**
      * A set of graph data that are supersets of the given GraphDatum.
      * 
+     * The postings of each term are intersected rarest first: the rarest
+     * posting list drives, and each of the others gallops ahead to the
+     * candidate ordinal, so the work is bounded by the smallest list
+     * rather than the largest. A term nothing contains ends the query
+     * before anything is decoded.
+     * 
      * @param query
      * The constraints that the result set should match.
      * 
      * @return
-     * Query results.
+     * Query results, in a new set.
      */
     public Set<ContentId> query(GraphDatum query){
         assert someEqual(repos, query.repo);
-        Set<ContentId> ret = null;
+        Set<ContentId> ret = new HashSet<ContentId>();
+        int limit = committed;
+        List<PostingList> plan = plan(query);
+        if (plan == null || plan.isEmpty())
+            return ret;
+        int n = plan.size();
+        PostingList.Cursor[] cursors = new PostingList.Cursor[n];
+        for (int i = 0; i < n; i++)
+            cursors[i] = plan.get(i).cursor();
+        int candidate = cursors[0].next();
+        while (candidate >= 0 && candidate < limit) {
+            int found = candidate;
+            for (int i = 1; i < n && found == candidate; i++)
+                found = cursors[i].advance(candidate);
+            if (found < 0)
+                break;
+            if (found == candidate) {
+                ret.add(datumAt(candidate));
+                candidate = cursors[0].next();
+            } else {
+                candidate = cursors[0].advance(found);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * The posting lists for each term of query, smallest first.
+     * 
+     * @return
+     * null if some term has no postings, so nothing can match.
+     */
+    protected List<PostingList> plan(GraphDatum query) {
+        List<PostingList> plan = new ArrayList<PostingList>();
         for (Map.Entry<ContentId, SetDatum> kv : query.entrySet()) {
-            SubjectPredicateObject k = spoaapFor(kv.getKey());
+            PostingIndex oneIdx = idx.get(spoaapFor(kv.getKey()));
             for (ContentId v : kv.getValue()) {
-                if (ret == null)
-                    ret = query(k, v);
-                else
-                    ret.retainAll(query(k, v));
+                PostingList postings = oneIdx.get(v);
+                if (postings == null)
+                    return null;
+                plan.add(postings);
             }
         }
-        return nullToEmptySet(ret);
+        Collections.sort(plan, BY_SIZE);
+        return plan;
     }
     
+    private static final Comparator<PostingList> BY_SIZE = new Comparator<PostingList>() {
+        @Override
+        public int compare(PostingList a, PostingList b) {
+            return a.size() < b.size() ? -1 : a.size() == b.size() ? 0 : 1;
+        }
+    };
+    
     private boolean someEqual(@SuppressWarnings("rawtypes") Iterable it, Object eq) {
         for (Object i : it)
             if (i == eq) return true;
@@ -1,6 +1,11 @@
 package org.baseparadigm;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedSet;
 
 
@@ -10,6 +15,10 @@ import java.util.SortedSet;
  * @author travis@traviswellman.com
  */
 public class GraphData implements Iterable<GraphDatum> {
+    /**
+     * How many members the iterator reads with each getAll.
+     */
+    public static final int ITERATOR_BATCH = 64;
     public static GraphData empty = new GraphData(SetDatum.empty);
     public SetDatum data;
     public GraphData(SetDatum value) {
@@ -30,20 +39,64 @@ public class GraphData implements Iterable<GraphDatum> {
         return true;
     }
     
+    /**
+     * Every GraphDatum, with all of their maps read in one getAll.
+     */
+    public List<GraphDatum> inflate() {
+        return inflate(data);
+    }
+    
+    static List<GraphDatum> inflate(Iterable<ContentId> ids) {
+        List<GraphDatum> ret = new ArrayList<GraphDatum>();
+        Repo repo = null;
+        Map<ContentId, byte[]> maps = null;
+        for (ContentId id : ids) {
+            if (maps == null) {
+                repo = id.repo;
+                maps = repo.getAll(ids);
+            }
+            byte[] serialized = maps.get(id);
+            if (serialized == null)
+                throw new IllegalStateException("the graph datum "+ id +" is not stored");
+            ret.add(new GraphDatum(repo, id, ByteBuffer.wrap(serialized)));
+        }
+        return ret;
+    }
+    
+    /**
+     * The members pattern partially matches, read and matched on
+     * PatternMatcher.defaultPool() ahead of the caller.
+     */
+    public PatternMatcher.Matches partialMatches(Pattern pattern) {
+        return new PatternMatcher().partialMatches(this, pattern);
+    }
+    
+    /**
+     * Reads ITERATOR_BATCH members at a time, on the caller's thread.
+     */
     public Iterator<GraphDatum> iterator() {
         final Iterator<ContentId> sit = data.iterator();
         return new Iterator<GraphDatum>() {
+            private Iterator<GraphDatum> batch = null;
             @Override
             public boolean hasNext() {
-                return sit.hasNext();
+                return (batch != null && batch.hasNext()) || sit.hasNext();
             }
             @Override
             public GraphDatum next() {
-                return new GraphDatum(sit.next());
+                if (batch == null || ! batch.hasNext()) {
+                    if (! sit.hasNext())
+                        throw new NoSuchElementException();
+                    List<ContentId> ids = new ArrayList<ContentId>(ITERATOR_BATCH);
+                    while (sit.hasNext() && ids.size() < ITERATOR_BATCH)
+                        ids.add(sit.next());
+                    batch = inflate(ids).iterator();
+                }
+                return batch.next();
             }
             @Override
             public void remove() {
-                sit.remove();
+                throw new UnsupportedOperationException("graph data is immutable");
             }
         };
     }
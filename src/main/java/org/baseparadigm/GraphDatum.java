@@ -1,6 +1,6 @@
 package org.baseparadigm;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -19,13 +19,13 @@ public class GraphDatum extends MapDatum {
      * @param datumId
      * This needs to be a complete MapDatum already contained in the given repo.
      */
-    public GraphDatum(Repo repo, BigInteger datumId) {
+    public GraphDatum(Repo repo, ContentId datumId) {
         super(repo, datumId);
         assertContainsKeys();
     }
     
     /**
-     * Same as public GraphDatum(BaseParadigm repo, BigInteger datumId)
+     * Same as public GraphDatum(BaseParadigm repo, ContentId datumId)
      * but the ContentId specifies the repo.
      * 
      * @param datumId
@@ -36,6 +36,15 @@ public class GraphDatum extends MapDatum {
         assertContainsKeys();
     }
     
+    /**
+     * Over a serialized map already read from the repo. Unlike the public
+     * constructors this doesn't assert every field is there, since
+     * Graph.add indexes data without some of them.
+     */
+    GraphDatum(Repo repo, ContentId datumId, ByteBuffer serialized) {
+        super(repo, datumId, serialized);
+    }
+    
     // with assertions disabled this is a no-op
     private void assertContainsKeys() {
         assert containsKey(repo.OBJECTSid);
@@ -112,13 +121,21 @@ public class GraphDatum extends MapDatum {
      * true if each aaspo contains all of the ids the respective aaspo of the given graphdatum contains.
      */
     public boolean isSupersetOf(GraphDatum g) {
-        for (SubjectPredicateObject i : SubjectPredicateObject.values())
-            if (! get(i).containsAll(g.get(i)))
+        for (SubjectPredicateObject i : SubjectPredicateObject.values()) {
+            SetDatum theirs = g.get(i);
+            if (theirs == null || theirs.isEmpty())
+                continue;
+            SetDatum ours = get(i);
+            if (ours == null || ! ours.containsAll(theirs))
                 return false;
+        }
         return true;
     }
 
     /**
+     * Checks each of negatives in turn; with many negatives, register them
+     * in a ContainmentIndex once and use isSupersetOfAny(ContainmentIndex).
+     * 
      * @param negatives
      * a set of graph data that each could be a subset of this
      * 
@@ -132,6 +149,14 @@ public class GraphDatum extends MapDatum {
         return false;
     }
 
+    /**
+     * Like isSupersetOfAny(Set) but only checks the negatives that share a
+     * keyword with this GraphDatum.
+     */
+    public boolean isSupersetOfAny(ContainmentIndex negatives) {
+        return negatives.hasSubsetOf(this);
+    }
+
     /**
      * Convenience for getting the PATTERNS field and turning each into a GraphData manually.
      */
@@ -0,0 +1,320 @@
+package org.baseparadigm;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes graph data into a Graph from many threads at once.
+ *
+ * Each keyword belongs to one partition, by its hash. Each partition has a
+ * worker thread, and only that thread appends to the keyword's posting
+ * lists. Room for the postings is reserved, ordinals are handed out and
+ * the postings queued under one short lock. Every partition therefore
+ * sees ordinals in increasing order, and the posting lists stay sorted.
+ * Running out of index memory fails the add before the datum gets an
+ * ordinal, as it does without a GraphIngest.
+ *
+ * A datum is committed, and visible to Graph.query, once every partition
+ * has indexed its postings and every datum before it is committed too.
+ * Graph.getCommitted is that watermark, so a query running meanwhile sees
+ * a consistent prefix of the data added so far.
+ *
+ * While a GraphIngest is open, Graph.add goes through it and waits for
+ * the datum to be committed. Subscriptions get data as they commit.
+ */
+public class GraphIngest implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 14;
+    private static final int DRAIN_BATCH = 256;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final Posting STOP = new Posting(null, null);
+
+    public final Graph graph;
+    private final Partition[] partitions;
+    // in ordinal order; guarded by itself
+    private final ArrayDeque<Pending> uncommitted = new ArrayDeque<Pending>();
+    private volatile Throwable failure = null;
+    private volatile boolean closed = false;
+
+    /**
+     * A partition per processor.
+     */
+    public GraphIngest(Graph graph) {
+        this(graph, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param partitions
+     * How many worker threads index postings.
+     *
+     * @param queueCapacity
+     * How many postings each partition may have waiting before add blocks.
+     */
+    public GraphIngest(Graph graph, int partitions, int queueCapacity) {
+        if (partitions < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("partitions and queueCapacity must be positive");
+        this.graph = graph;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++)
+            this.partitions[i] = new Partition(queueCapacity);
+        graph.attach(this);
+        for (Partition p : this.partitions)
+            p.start();
+    }
+
+    /**
+     * Stores toIndex in the graph's repos and queues its postings; it is
+     * committed some time later. Any number of threads may call this.
+     * Blocks while a partition's queue is full.
+     */
+    public void add(GraphDatum toIndex) {
+        if (! offer(toIndex))
+            throw new IllegalStateException("the graph ingest is closed");
+    }
+
+    /**
+     * Like add, but returns false instead of throwing once closed.
+     */
+    boolean offer(GraphDatum toIndex) {
+        checkFailure();
+        if (closed)
+            return false;
+        ContentId theId = graph.store(toIndex);
+        List<Posting> postings = new ArrayList<Posting>();
+        for (SubjectPredicateObject spoaap : SubjectPredicateObject.values()) {
+            Set<ContentId> values = toIndex.get(spoaap);
+            if (values == null)
+                continue;
+            PostingIndex oneIdx = graph.idx.get(spoaap);
+            for (ContentId keyword : values)
+                postings.add(new Posting(oneIdx, keyword));
+        }
+        // close sets closed under this lock too, so no postings come after STOP
+        synchronized (this) {
+            if (closed)
+                return false;
+            if (graph.isIndexed(theId))
+                return true;
+            // reserve runs on one thread at a time, as the lock ensures
+            int reserved = 0;
+            try {
+                for (Posting p : postings) {
+                    p.list = p.index.reserve(p.keyword);
+                    reserved++;
+                }
+            } catch (RuntimeException e) {
+                for (int i = 0; i < reserved; i++)
+                    postings.get(i).list.unreserve();
+                throw e;
+            }
+            int ordinal = graph.assign(theId);
+            if (ordinal < 0) {
+                for (Posting p : postings)
+                    p.list.unreserve();
+                return true; // already indexed
+            }
+            Pending pending = new Pending(ordinal, toIndex, postings.size());
+            synchronized (uncommitted) {
+                uncommitted.add(pending);
+            }
+            if (postings.isEmpty()) {
+                indexed(pending);
+                return true;
+            }
+            for (Posting p : postings) {
+                p.datum = pending;
+                partitions[partition(p.keyword)].enqueue(p);
+            }
+        }
+        return true;
+    }
+
+    private int partition(ContentId keyword) {
+        int h = keyword.hashCode();
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % partitions.length;
+    }
+
+    /**
+     * Marks a datum fully indexed and moves the commit watermark past
+     * every fully indexed datum at the front.
+     */
+    private void indexed(Pending p) {
+        List<Pending> committing = null;
+        synchronized (uncommitted) {
+            p.done = true;
+            while (! uncommitted.isEmpty() && uncommitted.peekFirst().done) {
+                if (committing == null)
+                    committing = new ArrayList<Pending>();
+                committing.add(uncommitted.pollFirst());
+            }
+            if (committing != null) {
+                graph.commit(committing.get(committing.size() - 1).ordinal + 1);
+                uncommitted.notifyAll();
+            }
+        }
+        if (committing != null)
+            for (Pending c : committing)
+                graph.publish(c.ordinal, c.datum);
+    }
+
+    private void fail(Throwable t) {
+        failure = t;
+        synchronized (uncommitted) {
+            uncommitted.notifyAll();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null)
+            throw new IllegalStateException("indexing failed", failure);
+    }
+
+    /**
+     * Waits until everything added so far is committed.
+     */
+    public void flush() {
+        int target = graph.datumCount();
+        boolean interrupted = false;
+        synchronized (uncommitted) {
+            while (graph.getCommitted() < target) {
+                checkFailure();
+                try {
+                    uncommitted.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Flushes, stops the workers and hands Graph.add back to the graph.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            if (failure == null)
+                flush();
+        } finally {
+            for (Partition p : partitions)
+                p.enqueue(STOP);
+            for (Partition p : partitions)
+                p.awaitStop();
+            // what failed to index never commits, so nothing after it may
+            if (failure != null && graph.getCommitted() < graph.datumCount())
+                graph.fail(failure);
+            graph.detach(this);
+        }
+    }
+
+    /**
+     * A datum whose postings are not all indexed yet.
+     */
+    private static class Pending {
+        final int ordinal;
+        final GraphDatum datum;
+        final AtomicInteger remaining;
+        boolean done = false;
+        Pending(int ordinal, GraphDatum datum, int postings) {
+            this.ordinal = ordinal;
+            this.datum = datum;
+            this.remaining = new AtomicInteger(postings);
+        }
+    }
+
+    private static class Posting {
+        final PostingIndex index;
+        final ContentId keyword;
+        PostingList list;
+        Pending datum;
+        Posting(PostingIndex index, ContentId keyword) {
+            this.index = index;
+            this.keyword = keyword;
+        }
+    }
+
+    /**
+     * A worker thread and the queue of postings for its keywords.
+     */
+    private class Partition extends Thread {
+        private final BlockingQueue<Posting> queue;
+
+        Partition(int queueCapacity) {
+            super("graph-ingest-"+ threadCount.incrementAndGet());
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<Posting>(queueCapacity);
+        }
+
+        void enqueue(Posting p) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(p);
+                    break;
+                } catch (InterruptedException e) {
+                    // the datum would never commit if only some postings were queued
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void awaitStop() {
+            boolean interrupted = false;
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public void run() {
+            List<Posting> batch = new ArrayList<Posting>(DRAIN_BATCH);
+            try {
+                boolean stop = false;
+                while (! stop) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, DRAIN_BATCH - 1);
+                    for (Posting p : batch)
+                        if (p == STOP)
+                            stop = true;
+                        else
+                            p.index.add(p.keyword, p.list, p.datum.ordinal);
+                    for (Posting p : batch)
+                        if (p != STOP && p.datum.remaining.decrementAndGet() == 0)
+                            indexed(p.datum);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+            } catch (Throwable t) {
+                fail(t);
+                // keep draining so adders blocked on a full queue get through
+                try {
+                    while (queue.take() != STOP)
+                        ;
+                } catch (InterruptedException e) {
+                    // give up
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package org.baseparadigm;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps the indexes of a Graph on disk, so a restart doesn't have to add
+ * every GraphDatum again.
+ *
+ * Each add appends the datum's id to a write ahead log before indexing it.
+ * Every checkpointInterval adds, all the ordinals and posting lists are
+ * written to a new checkpoint, renamed into place atomically, and the log
+ * is emptied. A checkpoint is a full rewrite, so its cost grows with the
+ * whole graph rather than with the adds since the last one; size
+ * checkpointInterval accordingly.
+ *
+ * Opening a journal decodes the checkpoint's postings back into the
+ * graph's arena, which needs no data to be read from the repo, then adds
+ * again only the data logged after it. The data themselves are read from
+ * the graph's repo, which has to be as durable as the journal.
+ *
+ * A log write reaches the operating system before add returns, so it
+ * survives the process crashing; sync() makes it survive the machine
+ * crashing too. A record torn by a crash is dropped when the log is
+ * replayed.
+ *
+ * Adds must go through the journal, not straight to the graph.
+ */
+public class GraphJournal implements Closeable {
+    public static final String LOG_FILE = "graph.log";
+    public static final String CHECKPOINT_FILE = "graph.ckpt";
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+    private static final int LOG_MAGIC = 0x42504a31; // BPJ1
+    private static final int CHECKPOINT_MAGIC = 0x42504731; // BPG1
+    static final int LOG_HEADER = 8;
+
+    public final Graph graph;
+    private final File dir;
+    private final int checkpointInterval;
+    private final int keyLength;
+    private final FileChannel log;
+    private int sinceCheckpoint = 0;
+    private int replayed = 0;
+
+    /**
+     * Loads the graph of dir over repo, or starts a new one.
+     */
+    public GraphJournal(File dir, Repo repo) throws IOException {
+        this(dir, new Graph(repo), DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param graph
+     * An empty graph to load into.
+     *
+     * @param checkpointInterval
+     * How many adds are logged between checkpoints.
+     */
+    public GraphJournal(File dir, Graph graph, int checkpointInterval) throws IOException {
+        if (graph.datumCount() != 0)
+            throw new IllegalArgumentException("the graph must start empty");
+        if (checkpointInterval < 1)
+            throw new IllegalArgumentException("checkpointInterval must be positive");
+        if (! dir.mkdirs())
+            if (! dir.exists())
+                throw new RuntimeException("can't use "+ dir.getAbsolutePath());
+        this.dir = dir;
+        this.graph = graph;
+        this.checkpointInterval = checkpointInterval;
+        this.keyLength = graph.repo.keyLength;
+        loadCheckpoint();
+        log = FileChannel.open(new File(dir, LOG_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replayLog();
+    }
+
+    private void loadCheckpoint() throws IOException {
+        File f = new File(dir, CHECKPOINT_FILE);
+        if (! f.exists())
+            return;
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            readCheckpoint(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * [magic][key length][datum count][datum ids...]
+     * then for each SubjectPredicateObject:
+     * [keyword count] and per keyword [keyword id][posting count][varint deltas...]
+     * then the CRC32 of all that as a long.
+     */
+    private void readCheckpoint(ByteBuffer in) {
+        if (in.limit() < 20)
+            throw new IllegalStateException("truncated checkpoint in "+ dir);
+        ByteBuffer body = in.duplicate();
+        body.limit(in.limit() - 8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if (crc.getValue() != in.getLong(in.limit() - 8))
+            throw new IllegalStateException("corrupt checkpoint in "+ dir);
+        if (in.getInt() != CHECKPOINT_MAGIC)
+            throw new IllegalStateException("not a graph checkpoint in "+ dir);
+        int checkpointKeyLength = in.getInt();
+        if (checkpointKeyLength != keyLength)
+            throw new IllegalStateException("the checkpoint has "+ checkpointKeyLength
+                    +" byte ids but the repo "+ keyLength);
+        int datums = in.getInt();
+        for (int i = 0; i < datums; i++)
+            graph.restore(readId(in));
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+            PostingIndex index = graph.idx.get(spo);
+            int keywords = in.getInt();
+            for (int k = 0; k < keywords; k++) {
+                ContentId keyword = readId(in);
+                int count = in.getInt();
+                int ordinal = -1;
+                for (int i = 0; i < count; i++) {
+                    ordinal += readVarint(in);
+                    index.add(keyword, ordinal);
+                }
+            }
+        }
+    }
+
+    private ContentId readId(ByteBuffer in) {
+        byte[] id = new byte[keyLength];
+        in.get(id);
+        return ContentId.wrap(graph.repo, id);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            ret |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return ret;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    /**
+     * Checks the header, or writes one if the log is new, then adds every
+     * datum logged since the checkpoint. Reading stops at the first record
+     * that is incomplete or fails its checksum, and the log is cut there.
+     */
+    private void replayLog() throws IOException {
+        if (log.size() < LOG_HEADER) {
+            log.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(LOG_HEADER);
+            header.putInt(LOG_MAGIC).putInt(keyLength).flip();
+            writeFully(header, 0);
+            log.force(true);
+            log.position(LOG_HEADER);
+            return;
+        }
+        ByteBuffer in = log.map(FileChannel.MapMode.READ_ONLY, 0, log.size());
+        if (in.getInt() != LOG_MAGIC)
+            throw new IllegalStateException("not a graph log in "+ dir);
+        int logKeyLength = in.getInt();
+        if (logKeyLength != keyLength)
+            throw new IllegalStateException("the log has "+ logKeyLength +" byte ids but the repo "+ keyLength);
+        List<ContentId> logged = new ArrayList<ContentId>();
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= keyLength + 4) {
+            byte[] id = new byte[keyLength];
+            in.get(id);
+            crc.reset();
+            crc.update(id);
+            if ((int) crc.getValue() != in.getInt())
+                break;
+            logged.add(ContentId.wrap(graph.repo, id));
+        }
+        long end = LOG_HEADER + (long) logged.size() * (keyLength + 4);
+        if (end < log.size())
+            log.truncate(end);
+        log.position(end);
+        // every logged datum read at once
+        Map<ContentId, byte[]> maps = graph.repo.getAll(logged);
+        for (ContentId id : logged) {
+            byte[] serialized = maps.get(id);
+            if (serialized == null)
+                throw new IllegalStateException("the logged graph datum "+ id +" is not in the repo");
+            graph.add(new GraphDatum(graph.repo, id, ByteBuffer.wrap(serialized)));
+        }
+        replayed = logged.size();
+        sinceCheckpoint = logged.size();
+    }
+
+    private void writeFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining())
+            position += log.write(b, position);
+    }
+
+    /**
+     * Logs toIndex, then adds it to the graph. Data already in the graph
+     * are not logged again. If the graph can't add it, it is cut from the
+     * log again, so the next open doesn't run into the same failure.
+     */
+    public synchronized void add(GraphDatum toIndex) throws IOException {
+        ContentId id = toIndex.getId().in(graph.repo);
+        if (graph.isIndexed(id))
+            return;
+        byte[] bytes = id.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(keyLength + 4);
+        record.put(bytes).putInt((int) crc.getValue()).flip();
+        long before = log.position();
+        while (record.hasRemaining())
+            log.write(record);
+        try {
+            graph.add(toIndex);
+        } catch (RuntimeException e) {
+            log.truncate(before);
+            log.position(before);
+            throw e;
+        }
+        if (++sinceCheckpoint >= checkpointInterval)
+            checkpoint();
+    }
+
+    /**
+     * Forces the log to disk.
+     */
+    public synchronized void sync() throws IOException {
+        log.force(false);
+    }
+
+    /**
+     * Writes the whole graph to a new checkpoint and empties the log.
+     */
+    public synchronized void checkpoint() throws IOException {
+        File temp = new File(dir, CHECKPOINT_FILE +".tmp");
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), Util.BUFFER_SIZE));
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(keyLength);
+            int datums = graph.datumCount();
+            out.writeInt(datums);
+            for (int i = 0; i < datums; i++)
+                out.write(graph.datumAt(i).toByteArray());
+            for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+                PostingIndex index = graph.idx.get(spo);
+                out.writeInt(index.keySet().size());
+                for (ContentId keyword : index.keySet()) {
+                    PostingList postings = index.get(keyword);
+                    out.write(keyword.toByteArray());
+                    out.writeInt(postings.size());
+                    PostingList.Cursor c = postings.cursor();
+                    int previous = -1;
+                    for (int ord = c.next(); ord >= 0; ord = c.next()) {
+                        writeVarint(out, ord - previous);
+                        previous = ord;
+                    }
+                }
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+        Files.move(temp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the rename has to be on disk before the log is emptied, or a power
+        // loss could bring back the old checkpoint next to an empty log
+        FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        try {
+            dirChannel.force(true);
+        } finally {
+            dirChannel.close();
+        }
+        // a crash before this just replays data the checkpoint has, which add skips
+        log.truncate(LOG_HEADER);
+        log.position(LOG_HEADER);
+        log.force(true);
+        sinceCheckpoint = 0;
+    }
+
+    /**
+     * How many logged data the last open had to add again.
+     */
+    public int getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Checkpoints, so the next open has nothing to replay, and closes the log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+}
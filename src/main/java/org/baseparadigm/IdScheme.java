@@ -0,0 +1,37 @@
+package org.baseparadigm;
+
+import java.security.MessageDigest;
+
+/**
+ * How a Repo computes content ids: which digest, and how many bytes of it
+ * make an id. A repo's scheme decides its key length and its well-known ids,
+ * so data can only be shared between repos using the same scheme.
+ */
+public interface IdScheme {
+    /**
+     * The scheme used unless a repo is given another one.
+     */
+    IdScheme SHA512 = new DigestIdScheme(Repo.COMMONS_ID_ALGORITHM, Repo.COMMONS_KEY_LENGTH);
+    IdScheme SHA256 = new DigestIdScheme("SHA-256", 32);
+    /**
+     * Half the key size of SHA512 without giving up its speed on 64 bit machines.
+     */
+    IdScheme SHA512_TRUNCATED_32 = new DigestIdScheme(Repo.COMMONS_ID_ALGORITHM, 32);
+
+    /**
+     * Recorded in the repo metadata; two schemes with the same name must
+     * produce the same ids.
+     */
+    String name();
+
+    /**
+     * The length of every id, in bytes.
+     */
+    int keyLength();
+
+    /**
+     * A new digest; repos keep one per thread. Only the first keyLength
+     * bytes of each digest are used.
+     */
+    MessageDigest newDigest();
+}
@@ -1,13 +1,11 @@
 package org.baseparadigm;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
@@ -19,9 +17,39 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
     public Repo repo;
     private boolean modifyRepo = true;
     private boolean isMutable = true;
-    public MapDatum(Repo repo, BigInteger datumId) {
+    /**
+     * Cached serialization of an immutable map; its value sets are expected
+     * not to change any more either.
+     */
+    private byte[] serialized = null;
+    
+    /**
+     * Immutable and lazy: the serialized pairs are searched in place and the
+     * SetDatum for a key is only built when get asks for it.
+     * @param datumId
+     * an id that should point to a map in the given repo.
+     */
+    public MapDatum(Repo repo, ContentId datumId) {
+        this(repo, datumId, repo.getBuffer(datumId));
+    }
+    
+    private MapDatum(Repo repo, ByteBuffer serialized) {
         this.repo = repo;
-        this.backingMap = Collections.unmodifiableSortedMap(toMap(repo, datumId));
+        this.backingMap = new PackedIdMap(repo, serialized);
+        isMutable = false;
+    }
+    
+    MapDatum(Repo repo, ContentId datumId, ByteBuffer serialized) {
+        this(repo, serialized);
+        this.id = datumId;
+    }
+    
+    /**
+     * An immutable MapDatum reading straight from a serialized map, as
+     * written by toByteArray, without copying or parsing it.
+     */
+    public static MapDatum view(Repo repo, ByteBuffer serialized) {
+        return new MapDatum(repo, serialized.slice());
     }
     
     /**
@@ -52,7 +80,7 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
      * Get the data for the content id and create a MapDatum from it.
      */
     public static MapDatum inflate(ContentId cid) {
-        return new MapDatum(toMap(cid.repo, cid));
+        return new MapDatum(cid.repo, cid);
     }
     
     /**
@@ -62,7 +90,7 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
         if (! isMutable)
             throw new UnsupportedOperationException("this DatumMap is immutable");
         put(
-                new ContentId(repo, key.getBytes(repo.getCharset()))
+                repo.put(key.getBytes(repo.getCharset()))
                 , new BigInteger(""+ value).toByteArray()
                 );
         return this;
@@ -160,6 +188,8 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
 
     /**
      * The datumId must reference a map of references to references to sets.
+     * Unlike new MapDatum(repo, datumId), this parses every key and every
+     * value set up front.
      * 
      * @param repo
      * Where to look up the datumId.
@@ -167,31 +197,38 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
      * @param datumId
      * The id for the content of the map.
      */
-    public static SortedMap<ContentId, SetDatum> toMap(Repo repo, BigInteger datumId) {
+    public static SortedMap<ContentId, SetDatum> toMap(Repo repo, ContentId datumId) {
+        ByteBuffer pairs = repo.getBuffer(datumId);
+        int keyLength = repo.keyLength();
+        assert pairs.remaining() % (2 * keyLength) == 0;
+        Map<ContentId, ContentId> valueIds = new LinkedHashMap<ContentId, ContentId>();
+        for (int offset = 0; offset + 2 * keyLength <= pairs.limit(); offset += 2 * keyLength)
+            valueIds.put(ContentId.read(repo, pairs, offset), ContentId.read(repo, pairs, offset + keyLength));
+        // every value set in one read
+        Map<ContentId, byte[]> valueSets = repo.getAll(valueIds.values());
         SortedMap<ContentId, SetDatum> toFill = new TreeMap<ContentId, SetDatum>();
-        InputStream pairs = new ByteArrayInputStream(repo.get(datumId));
-        try {
-            byte[] pair = new byte[repo.keyLength() *2];
-            int nbrRead = pairs.read(pair);
-            for(byte[] k, v;
-                    nbrRead == pair.length;
-                    nbrRead = pairs.read(pair)) {
-                k = repo.get(Arrays.copyOfRange(pair, 0, repo.keyLength()));
-                v = repo.get(Arrays.copyOfRange(pair, repo.keyLength(), pair.length));
-                SetDatum setOfReferences = new SetDatum(repo, new BigInteger(v));
-                toFill.put(new ContentId(repo, k), setOfReferences);
-            }
-        } catch (IOException ioe) {
-            assert false : "there is something drastically wrong if a ByteArrayInputStream throws an IOException";
+        for (Map.Entry<ContentId, ContentId> e : valueIds.entrySet()) {
+            byte[] serialized = valueSets.get(e.getValue());
+            if (serialized == null)
+                throw new IllegalStateException("the value set "+ e.getValue() +" of "+ datumId +" is not stored");
+            toFill.put(e.getKey(), SetDatum.parse(repo, serialized));
         }
         return toFill;
     }
     
+    private void changed() {
+        serialized = null;
+        id = null;
+    }
+    
     @Override
-    public void clear() { backingMap.clear(); }
+    public void clear() {
+        changed();
+        backingMap.clear();
+    }
     @Override
     public boolean containsKey(Object key) {
-        assert key instanceof BigInteger;
+        assert key instanceof ContentId;
         return containsKey((ContentId)key);
     }
     public boolean containsKey(ContentId key) {
@@ -242,6 +279,7 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
      */
     @Override
     public SetDatum put(ContentId key, SetDatum value) {
+        changed();
         return backingMap.put(key, value);
     }
     
@@ -261,14 +299,14 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
      */
     public SetDatum put(ContentId key, ContentId val) {
         SetDatum replacing = get(key);
-        if (replacing != null) {
-            SetDatum merged = new SetDatum(replacing);
-            merged.add(val);
-            return put(key, merged);
-        }
-        replacing = new SetDatum(repo);
-        replacing.add(val);
-        return put(key, replacing);
+        if (replacing != null && replacing.contains(val))
+            return replacing;
+        SetDatum merged = new SetDatum(repo);
+        if (replacing != null)
+            merged.backingSet.addAll(replacing);
+        merged.add(val);
+        // immutable values keep their ids cached between serializations
+        return put(key, merged.buildFinish());
     }
     
     /**
@@ -285,10 +323,12 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
     
     @Override
     public void putAll(Map<? extends ContentId, ? extends SetDatum> arg0) {
+        changed();
         backingMap.putAll(arg0);
     }
     @Override
     public SetDatum remove(Object key) {
+        changed();
         return backingMap.remove(key);
     }
     @Override
@@ -300,20 +340,40 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
         return backingMap.values();
     }
 
+    /**
+     * Serializes as [key id][id of the value set] pairs. Value sets that are
+     * immutable remember their ids, so after changing one field only that
+     * field's set is serialized and hashed again; the rest of the work is
+     * copying ids.
+     */
     @Override
     public byte[] toByteArray() {
+        if (isMutable)
+            return serialize();
+        if (serialized == null)
+            serialized = serialize();
+        return serialized.clone();
+    }
+    
+    private byte[] serialize() {
+        if (backingMap instanceof PackedIdMap)
+            return ((PackedIdMap) backingMap).toByteArray();
         byte[] ret = new byte[repo.keyLength *size() *2];
         int offset = 0;
         for (Map.Entry<ContentId, SetDatum> entry : entrySet()) {
-            System.arraycopy(entry.getKey().toByteArray(), 0, ret, offset, repo.keyLength);
-            offset += repo.keyLength;
-            byte[] src = repo.put(new SetDatum(entry.getValue()).toByteArray()).toByteArray();
-            assert src.length == repo.keyLength;
-            System.arraycopy( src, 0, ret, offset, repo.keyLength);
-            offset += repo.keyLength;
+            offset = entry.getKey().writeTo(ret, offset);
+            ContentId src = valueId(entry.getValue());
+            assert src.length() == repo.keyLength;
+            offset = src.writeTo(ret, offset);
         }
         return ret;
     }
+    
+    private ContentId valueId(SetDatum value) {
+        if (value.repo == repo)
+            return value.getId();
+        return repo.put(value);
+    }
 
     @Override
     public Comparator<? super ContentId> comparator() {
@@ -361,8 +421,15 @@ public class MapDatum implements SortedMap<ContentId, SetDatum>, ToByteArray{
         return put(repo.idFor(fieldName.getBytes(repo.getCharset())), byteArray);
     }
 
-    public ContentId id = null;
+    // only cached once immutable; a mutable map can change through its views
+    private ContentId id = null;
+    /**
+     * Stores this map in its repo and returns the id; for an immutable map
+     * only the first call does any work.
+     */
     public ContentId getId() {
+        if (isMutable)
+            return repo.put(this);
         if (id == null)
             id = repo.put(this);
         return id;
@@ -0,0 +1,93 @@
+package org.baseparadigm;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Bump allocator over direct (off heap) slabs. Addresses are longs: the
+ * slab number in the high bits and the offset in the low SLAB_SHIFT bits.
+ * Nothing is ever freed; the arena is dropped as a whole. The total is
+ * capped so an index can't grow without bound outside the Java heap.
+ * Any thread may allocate.
+ */
+class OffHeapArena {
+    static final int SLAB_SHIFT = 20;
+    static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int OFFSET_MASK = SLAB_SIZE - 1;
+
+    private final long maxBytes;
+    // read without locking; slabs are only ever added
+    private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<ByteBuffer>();
+    // guarded by this
+    private int top = SLAB_SIZE;
+
+    /**
+     * @param maxBytes
+     * The most direct memory this arena will reserve, in whole slabs.
+     */
+    OffHeapArena(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return
+     * The address of size fresh zeroed bytes, all in one slab.
+     */
+    synchronized long allocate(int size) {
+        if (size > SLAB_SIZE || size < 1)
+            throw new IllegalArgumentException("can't allocate "+ size +" bytes from "+ SLAB_SIZE +" byte slabs");
+        if (top + size > SLAB_SIZE) {
+            if ((long) (slabs.size() + 1) * SLAB_SIZE > maxBytes)
+                throw new IllegalStateException("off heap index memory is capped at "+ maxBytes +" bytes");
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            top = 0;
+        }
+        long address = ((long) (slabs.size() - 1) << SLAB_SHIFT) | top;
+        top += size;
+        return address;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs.get((int) (address >>> SLAB_SHIFT));
+    }
+
+    private static int offset(long address) {
+        return (int) (address & OFFSET_MASK);
+    }
+
+    byte get(long address) {
+        return slab(address).get(offset(address));
+    }
+
+    void put(long address, byte b) {
+        slab(address).put(offset(address), b);
+    }
+
+    int getInt(long address) {
+        return slab(address).getInt(offset(address));
+    }
+
+    void putInt(long address, int i) {
+        slab(address).putInt(offset(address), i);
+    }
+
+    long getLong(long address) {
+        return slab(address).getLong(offset(address));
+    }
+
+    void putLong(long address, long l) {
+        slab(address).putLong(offset(address), l);
+    }
+
+    /**
+     * Direct memory reserved so far.
+     */
+    long getReservedBytes() {
+        return (long) slabs.size() * SLAB_SIZE;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,255 @@
+package org.baseparadigm;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A read only SortedMap over pairs serialized the way MapDatum.toByteArray
+ * writes them: [key id][id of the value set], sorted by key. Keys are
+ * binary searched in place and each value SetDatum is only built, lazily
+ * itself, the first time it is asked for.
+ */
+class PackedIdMap extends AbstractMap<ContentId, SetDatum> implements SortedMap<ContentId, SetDatum> {
+    private final Repo repo;
+    private final ByteBuffer pairs;
+    private final int keyLength;
+    private final int from, to;
+    /**
+     * Indexed by absolute pair number and shared with range views.
+     */
+    private final AtomicReferenceArray<SetDatum> values;
+
+    /**
+     * @param pairs
+     * Read with absolute gets only, from index 0 to its limit.
+     */
+    PackedIdMap(Repo repo, ByteBuffer pairs) {
+        this(repo, pairs, 0, pairs.limit() / (2 * repo.keyLength),
+                new AtomicReferenceArray<SetDatum>(pairs.limit() / (2 * repo.keyLength)));
+        if (pairs.limit() % (2 * keyLength) != 0)
+            throw new IllegalArgumentException(pairs.limit()
+                    +" bytes is not a whole number of "+ keyLength +" byte id pairs");
+    }
+
+    private PackedIdMap(Repo repo, ByteBuffer pairs, int from, int to, AtomicReferenceArray<SetDatum> values) {
+        this.repo = repo;
+        this.pairs = pairs;
+        this.keyLength = repo.keyLength;
+        this.from = from;
+        this.to = to;
+        this.values = values;
+    }
+
+    private int keyOffset(int index) {
+        return index * 2 * keyLength;
+    }
+
+    ContentId keyAt(int index) {
+        return ContentId.read(repo, pairs, keyOffset(index));
+    }
+
+    ContentId valueIdAt(int index) {
+        return ContentId.read(repo, pairs, keyOffset(index) + keyLength);
+    }
+
+    SetDatum valueAt(int index) {
+        SetDatum v = values.get(index);
+        if (v == null) {
+            v = new SetDatum(repo, valueIdAt(index));
+            if (! values.compareAndSet(index, null, v))
+                v = values.get(index);
+        }
+        return v;
+    }
+
+    /**
+     * The first index in [from, to) whose key is not less than key.
+     */
+    private int lowerBound(ContentId key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.compareTo(pairs, keyOffset(mid)) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private int indexOf(Object o) {
+        if (! (o instanceof ContentId) || ((ContentId) o).repo != repo)
+            return -1;
+        ContentId key = (ContentId) o;
+        int i = lowerBound(key);
+        return i < to && key.compareTo(pairs, keyOffset(i)) == 0 ? i : -1;
+    }
+
+    @Override
+    public SetDatum get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    private final class Entry implements Map.Entry<ContentId, SetDatum> {
+        private final int index;
+        private ContentId key;
+        Entry(int index) {
+            this.index = index;
+        }
+        @Override
+        public ContentId getKey() {
+            if (key == null)
+                key = keyAt(index);
+            return key;
+        }
+        @Override
+        public SetDatum getValue() {
+            return valueAt(index);
+        }
+        @Override
+        public SetDatum setValue(SetDatum value) {
+            throw new UnsupportedOperationException("packed id maps are read only");
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+        }
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ getValue().hashCode();
+        }
+    }
+
+    private abstract class IndexIterator<T> implements Iterator<T> {
+        private int next = from;
+        @Override
+        public boolean hasNext() {
+            return next < to;
+        }
+        @Override
+        public T next() {
+            if (next >= to)
+                throw new NoSuchElementException();
+            return at(next++);
+        }
+        abstract T at(int index);
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("packed id maps are read only");
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<ContentId, SetDatum>> entrySet() {
+        return new AbstractSet<Map.Entry<ContentId, SetDatum>>() {
+            @Override
+            public Iterator<Map.Entry<ContentId, SetDatum>> iterator() {
+                return new IndexIterator<Map.Entry<ContentId, SetDatum>>() {
+                    @Override
+                    Map.Entry<ContentId, SetDatum> at(int index) {
+                        return new Entry(index);
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return PackedIdMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * Iterating the keys never builds a value.
+     */
+    @Override
+    public Set<ContentId> keySet() {
+        return new AbstractSet<ContentId>() {
+            @Override
+            public Iterator<ContentId> iterator() {
+                return new IndexIterator<ContentId>() {
+                    @Override
+                    ContentId at(int index) {
+                        return keyAt(index);
+                    }
+                };
+            }
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+            @Override
+            public int size() {
+                return PackedIdMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super ContentId> comparator() {
+        return null;
+    }
+
+    @Override
+    public ContentId firstKey() {
+        if (from == to)
+            throw new NoSuchElementException();
+        return keyAt(from);
+    }
+
+    @Override
+    public ContentId lastKey() {
+        if (from == to)
+            throw new NoSuchElementException();
+        return keyAt(to - 1);
+    }
+
+    @Override
+    public SortedMap<ContentId, SetDatum> headMap(ContentId endKey) {
+        return new PackedIdMap(repo, pairs, from, lowerBound(endKey), values);
+    }
+
+    @Override
+    public SortedMap<ContentId, SetDatum> tailMap(ContentId startKey) {
+        return new PackedIdMap(repo, pairs, lowerBound(startKey), to, values);
+    }
+
+    @Override
+    public SortedMap<ContentId, SetDatum> subMap(ContentId startKey, ContentId endKey) {
+        if (startKey.compareTo(endKey) > 0)
+            throw new IllegalArgumentException("startKey is after endKey");
+        return new PackedIdMap(repo, pairs, lowerBound(startKey), lowerBound(endKey), values);
+    }
+
+    /**
+     * The serialized form of this (sub)map.
+     */
+    byte[] toByteArray() {
+        byte[] ret = new byte[keyOffset(size())];
+        ByteBuffer dup = pairs.duplicate();
+        dup.limit(keyOffset(to)).position(keyOffset(from));
+        dup.get(ret);
+        return ret;
+    }
+}
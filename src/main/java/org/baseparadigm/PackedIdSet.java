@@ -0,0 +1,150 @@
+package org.baseparadigm;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * A read only SortedSet over ids serialized the way SetDatum.toByteArray
+ * writes them: sorted and back to back, each the repo's key length.
+ * Lookups are binary searches over the bytes and a ContentId is only
+ * allocated when one is handed out. Subsets are views over index ranges
+ * of the same buffer.
+ */
+class PackedIdSet extends AbstractSet<ContentId> implements SortedSet<ContentId> {
+    private final Repo repo;
+    private final ByteBuffer ids;
+    private final int keyLength;
+    private final int from, to;
+
+    /**
+     * @param ids
+     * Read with absolute gets only, from index 0 to its limit.
+     */
+    PackedIdSet(Repo repo, ByteBuffer ids) {
+        this(repo, ids, 0, ids.limit() / repo.keyLength);
+        if (ids.limit() % keyLength != 0)
+            throw new IllegalArgumentException(ids.limit()
+                    +" bytes is not a whole number of "+ keyLength +" byte ids");
+        assert isSorted();
+    }
+
+    private PackedIdSet(Repo repo, ByteBuffer ids, int from, int to) {
+        this.repo = repo;
+        this.ids = ids;
+        this.keyLength = repo.keyLength;
+        this.from = from;
+        this.to = to;
+    }
+
+    private boolean isSorted() {
+        for (int i = from + 1; i < to; i++)
+            if (idAt(i - 1).compareTo(ids, i * keyLength) >= 0)
+                return false;
+        return true;
+    }
+
+    ContentId idAt(int index) {
+        return ContentId.read(repo, ids, index * keyLength);
+    }
+
+    /**
+     * The first index in [from, to) whose id is not less than key.
+     */
+    private int lowerBound(ContentId key) {
+        int lo = from, hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (key.compareTo(ids, mid * keyLength) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (! (o instanceof ContentId) || ((ContentId) o).repo != repo)
+            return false;
+        ContentId key = (ContentId) o;
+        int i = lowerBound(key);
+        return i < to && key.compareTo(ids, i * keyLength) == 0;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public Iterator<ContentId> iterator() {
+        return new Iterator<ContentId>() {
+            private int next = from;
+            @Override
+            public boolean hasNext() {
+                return next < to;
+            }
+            @Override
+            public ContentId next() {
+                if (next >= to)
+                    throw new NoSuchElementException();
+                return idAt(next++);
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("packed id sets are read only");
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super ContentId> comparator() {
+        return null;
+    }
+
+    @Override
+    public ContentId first() {
+        if (from == to)
+            throw new NoSuchElementException();
+        return idAt(from);
+    }
+
+    @Override
+    public ContentId last() {
+        if (from == to)
+            throw new NoSuchElementException();
+        return idAt(to - 1);
+    }
+
+    @Override
+    public SortedSet<ContentId> headSet(ContentId end) {
+        return new PackedIdSet(repo, ids, from, lowerBound(end));
+    }
+
+    @Override
+    public SortedSet<ContentId> tailSet(ContentId start) {
+        return new PackedIdSet(repo, ids, lowerBound(start), to);
+    }
+
+    @Override
+    public SortedSet<ContentId> subSet(ContentId start, ContentId end) {
+        if (start.compareTo(end) > 0)
+            throw new IllegalArgumentException("start is after end");
+        return new PackedIdSet(repo, ids, lowerBound(start), lowerBound(end));
+    }
+
+    /**
+     * The serialized form of this (sub)set.
+     */
+    byte[] toByteArray() {
+        byte[] ret = new byte[size() * keyLength];
+        ByteBuffer dup = ids.duplicate();
+        dup.limit(to * keyLength).position(from * keyLength);
+        dup.get(ret);
+        return ret;
+    }
+}
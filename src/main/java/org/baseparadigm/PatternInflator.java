@@ -1,30 +1,162 @@
 package org.baseparadigm;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Because many pattern formats could exist, Baseparadigm does not provide implementations.
  *  Code that supports pattern formats must implement an inflator that can match patterns
  *  with appropriate implementations of the Pattern interface.
- *  
+ *
+ * Inflators registered for a TYPE get the patterns whose MapDatum (as
+ *  Stuffable.stuff makes them) has that TYPE; the default inflator gets
+ *  the rest. Patterns are immutable and content addressed, so each one is
+ *  inflated once and the instance is shared from a bounded cache. Hits
+ *  take no lock; once the cache is full, a clock sweep evicts patterns
+ *  that weren't used since it last came by.
+ *
  * @author travis@traviswellman.com
  *
  */
 public abstract class PatternInflator {
-    
+    public static final int CACHE_SIZE = 4096;
+
     /**
      * A registered inflator must be provided by a subclass.
      */
-    protected static PatternInflator registeredInflator = null;
-    
+    protected static volatile PatternInflator registeredInflator = null;
+
+    private static final Map<String, PatternInflator> byType = new ConcurrentHashMap<String, PatternInflator>();
+
+    /**
+     * Bumped by clearCache, so an inflation that started before it isn't
+     *  cached after it.
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final ConcurrentHashMap<ContentId, Cached> inflated = new ConcurrentHashMap<ContentId, Cached>();
+    // the cached ids in the order the sweep visits them; may hold ids
+    // that are no longer cached, which it skips
+    private static final ConcurrentLinkedQueue<ContentId> clock = new ConcurrentLinkedQueue<ContentId>();
+
+    private static class Cached {
+        final Pattern pattern;
+        // set by a hit, cleared by the sweep
+        volatile boolean referenced = false;
+        Cached(Pattern pattern) {
+            this.pattern = pattern;
+        }
+    }
+
     /**
      * A subclass of PatternInflator must call this method to register itself.
      */
-    protected static void registerDefaultInflator(PatternInflator pi) { registeredInflator = pi; }
-    
+    protected static void registerDefaultInflator(PatternInflator pi) {
+        registeredInflator = pi;
+        clearCache();
+    }
+
+    /**
+     * Inflate patterns whose TYPE field contains type with pi, instead of
+     *  the default inflator.
+     */
+    public static void register(String type, PatternInflator pi) {
+        byType.put(type, pi);
+        clearCache();
+    }
+
+    public static void unregister(String type) {
+        byType.remove(type);
+        clearCache();
+    }
+
+    /**
+     * Forget every inflated pattern; registering an inflator does this.
+     */
+    public static void clearCache() {
+        generation.incrementAndGet();
+        // the clock first: an id cached meanwhile is queued after its put
+        clock.clear();
+        inflated.clear();
+    }
+
+    /**
+     * Use the registered PatternInflator, or the cached Pattern if this one
+     *  was inflated before.
+     */
+    public static Pattern inflat(ContentId shrunkPattern) {
+        Cached hit = inflated.get(shrunkPattern);
+        if (hit != null) {
+            // only written when it changes, so hot patterns share the line
+            if (! hit.referenced)
+                hit.referenced = true;
+            return hit.pattern;
+        }
+        long started = generation.get();
+        // if two threads race, both instances are equivalent
+        Cached c = new Cached(inflatorFor(shrunkPattern).inflate(shrunkPattern));
+        Cached first = inflated.putIfAbsent(shrunkPattern, c);
+        if (first != null)
+            return first.pattern;
+        if (generation.get() != started) {
+            // an inflator registered meanwhile may not have been the one used
+            inflated.remove(shrunkPattern, c);
+            return c.pattern;
+        }
+        clock.add(shrunkPattern);
+        if (inflated.size() > CACHE_SIZE)
+            evict();
+        return c.pattern;
+    }
+
     /**
-     * Use the registered PatternInflator.
+     * Sweeps the clock until the cache fits: a pattern used since the last
+     *  sweep gets another round, the others are evicted.
      */
-    public static Pattern inflat(ContentId shrunkPattern) { return registeredInflator.inflate(shrunkPattern); }
-    
+    private static void evict() {
+        synchronized (clock) {
+            while (inflated.size() > CACHE_SIZE) {
+                ContentId id = clock.poll();
+                if (id == null)
+                    return;
+                Cached c = inflated.get(id);
+                if (c == null)
+                    continue;
+                if (c.referenced) {
+                    c.referenced = false;
+                    clock.add(id);
+                } else {
+                    inflated.remove(id, c);
+                }
+            }
+        }
+    }
+
+    private static PatternInflator inflatorFor(ContentId shrunkPattern) {
+        if (! byType.isEmpty()) {
+            Repo repo = shrunkPattern.repo;
+            SetDatum types;
+            try {
+                types = new MapDatum(repo, shrunkPattern).getField(MetadataFields.TYPE);
+            } catch (IllegalArgumentException notAMapDatum) {
+                // a format of the default inflator's own
+                types = null;
+            }
+            if (types != null)
+                for (byte[] type : types.getValues().values()) {
+                    PatternInflator pi = byType.get(new String(type, repo.getCharset()));
+                    if (pi != null)
+                        return pi;
+                }
+        }
+        PatternInflator pi = registeredInflator;
+        if (pi == null)
+            throw new IllegalStateException("no inflator is registered for the pattern "+ shrunkPattern);
+        return pi;
+    }
+
     /**
      * Takes an id for a serialized pattern and return an instance.
      */
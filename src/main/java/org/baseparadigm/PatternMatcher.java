@@ -0,0 +1,175 @@
+package org.baseparadigm;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds the members of a GraphData that a Pattern partially matches, on a
+ * fork join pool.
+ *
+ * The members are split into partitions of partitionSize in set order.
+ * Each partition is read with one getAll, inflated and matched by a task
+ * on the pool. The Matches iterator hands the results back in set order
+ * and keeps at most lookahead partitions ahead of the caller, so nothing
+ * runs before the first hasNext and stopping early (close) wastes at most
+ * that many partitions of work.
+ */
+public class PatternMatcher {
+    public static final int DEFAULT_PARTITION_SIZE = GraphData.ITERATOR_BATCH;
+    // created on first use, never shut down
+    private static ForkJoinPool shared = null;
+
+    public final ForkJoinPool pool;
+    public final int partitionSize;
+    public final int lookahead;
+
+    /**
+     * On defaultPool(), with a partition ahead per worker thread.
+     */
+    public PatternMatcher() {
+        this(defaultPool(), DEFAULT_PARTITION_SIZE, defaultPool().getParallelism());
+    }
+
+    /**
+     * The pool shared by every PatternMatcher that doesn't bring its own:
+     * a daemon worker per processor, apart from Repo.ingestPool so that
+     * slow patterns don't hold up Graph.add. Don't shut it down.
+     */
+    public static synchronized ForkJoinPool defaultPool() {
+        if (shared == null)
+            shared = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    /**
+     * @param partitionSize
+     * How many members each task reads and matches.
+     *
+     * @param lookahead
+     * The most partitions matched or being matched that the caller has
+     * not got to yet.
+     */
+    public PatternMatcher(ForkJoinPool pool, int partitionSize, int lookahead) {
+        if (partitionSize < 1 || lookahead < 1)
+            throw new IllegalArgumentException("partitionSize and lookahead must be positive");
+        this.pool = pool;
+        this.partitionSize = partitionSize;
+        this.lookahead = lookahead;
+    }
+
+    /**
+     * The members of data that pattern.isPartialMatch(GraphDatum) accepts,
+     * in set order; close the result if it isn't drained.
+     */
+    public Matches partialMatches(GraphData data, Pattern pattern) {
+        return new Matches(data.data.iterator(), pattern);
+    }
+
+    /**
+     * A lazy iterator over matches; close cancels the partitions queued
+     * ahead. Iterate on one thread; any thread may close.
+     */
+    public class Matches implements Iterator<GraphDatum>, Closeable {
+        private final Iterator<ContentId> ids;
+        private final Pattern pattern;
+        // in set order; only the iterating thread adds or removes, close
+        // may cancel from another
+        private final ConcurrentLinkedDeque<Partition> ahead = new ConcurrentLinkedDeque<Partition>();
+        // only touched by the iterating thread
+        private Iterator<GraphDatum> current = Collections.<GraphDatum>emptyList().iterator();
+        private volatile boolean closed = false;
+
+        Matches(Iterator<ContentId> ids, Pattern pattern) {
+            this.ids = ids;
+            this.pattern = pattern;
+        }
+
+        private void fill() {
+            while (! closed && ahead.size() < lookahead && ids.hasNext()) {
+                List<ContentId> partition = new ArrayList<ContentId>(partitionSize);
+                while (ids.hasNext() && partition.size() < partitionSize)
+                    partition.add(ids.next());
+                ahead.add(new Partition(partition));
+                pool.execute(ahead.peekLast());
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                if (closed) {
+                    ahead.clear();
+                    current = Collections.<GraphDatum>emptyList().iterator();
+                    return false;
+                }
+                if (current.hasNext())
+                    return true;
+                fill();
+                Partition next = ahead.poll();
+                if (next == null)
+                    return false;
+                try {
+                    // join runs the task here if no worker has started it yet
+                    current = next.join().iterator();
+                } catch (CancellationException closedMeanwhile) {
+                    continue;
+                }
+                fill();
+            }
+        }
+
+        @Override
+        public GraphDatum next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("graph data is immutable");
+        }
+
+        /**
+         * Stops matching; partitions already running finish the member
+         * they are on, and hasNext returns false from then on.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            // the iterating thread lets go of them on its next hasNext
+            for (ForkJoinTask<?> t : ahead)
+                t.cancel(false);
+        }
+
+        private class Partition extends RecursiveTask<List<GraphDatum>> {
+            private static final long serialVersionUID = 1L;
+            private final List<ContentId> ids;
+
+            Partition(List<ContentId> ids) {
+                this.ids = ids;
+            }
+
+            @Override
+            protected List<GraphDatum> compute() {
+                List<GraphDatum> matched = new ArrayList<GraphDatum>();
+                for (GraphDatum gd : GraphData.inflate(ids)) {
+                    if (closed)
+                        break;
+                    if (pattern.isPartialMatch(gd))
+                        matched.add(gd);
+                }
+                return matched;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.baseparadigm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One of the indexes of a Graph: for each keyword (a ContentId found in one
+ * SubjectPredicateObject field) the ordinals of the graph data containing it.
+ * The posting lists themselves are off heap in the graph's arena.
+ *
+ * Keywords may be added to from several threads as long as each keyword's
+ * list only ever gets appended to by one at a time.
+ */
+public class PostingIndex {
+    private final OffHeapArena arena;
+    private final Map<ContentId, PostingList> lists = new ConcurrentHashMap<ContentId, PostingList>();
+    // reserved but not appended to yet, so not part of the index
+    private final Map<ContentId, PostingList> unlisted = new ConcurrentHashMap<ContentId, PostingList>();
+
+    PostingIndex(OffHeapArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * Records that the datum with the given ordinal contains keyword.
+     */
+    void add(ContentId keyword, int ordinal) {
+        add(keyword, reserve(keyword), ordinal);
+    }
+
+    /**
+     * The list keyword's next ordinal goes in, with room reserved for it;
+     * a new list is not part of the index until add(keyword, list, ordinal).
+     * Call PostingList.unreserve if the ordinal won't be added after all.
+     * Only one thread at a time may reserve.
+     * 
+     * @throws IllegalStateException
+     * if the arena is used up.
+     */
+    PostingList reserve(ContentId keyword) {
+        // unlisted first: add lists a list before it unlists it
+        PostingList pl = unlisted.get(keyword);
+        if (pl == null)
+            pl = lists.get(keyword);
+        if (pl != null) {
+            pl.reserve();
+            return pl;
+        }
+        pl = new PostingList(arena);
+        pl.reserve();
+        unlisted.put(keyword, pl);
+        return pl;
+    }
+
+    /**
+     * Appends ordinal to a list from reserve(keyword), which never allocates.
+     */
+    void add(ContentId keyword, PostingList reserved, int ordinal) {
+        reserved.appendReserved(ordinal);
+        if (reserved.size() == 1) {
+            lists.put(keyword, reserved);
+            unlisted.remove(keyword);
+        }
+    }
+
+    /**
+     * @return
+     * null if no datum contains keyword.
+     */
+    public PostingList get(ContentId keyword) {
+        return lists.get(keyword);
+    }
+
+    /**
+     * How many data contain keyword.
+     */
+    public int cardinality(ContentId keyword) {
+        PostingList pl = lists.get(keyword);
+        return pl == null ? 0 : pl.size();
+    }
+
+    public Set<ContentId> keySet() {
+        return Collections.unmodifiableSet(lists.keySet());
+    }
+}
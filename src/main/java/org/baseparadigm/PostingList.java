@@ -0,0 +1,277 @@
+package org.baseparadigm;
+
+import java.util.Arrays;
+
+/**
+ * A sorted list of datum ordinals kept off heap as varint encoded deltas.
+ * The bytes live in a chain of blocks in an OffHeapArena; each block is
+ * twice the size of the one before, up to MAX_BLOCK, so appends are
+ * amortized O(1) and nothing is ever copied.
+ *
+ * Block layout: [long address of the next block][int bytes used][deltas...]
+ *
+ * Every SKIP_INTERVAL-th ordinal is also recorded on heap along with where
+ * decoding resumes after it, so a Cursor can gallop ahead instead of
+ * decoding every delta in between.
+ *
+ * One thread at a time may append while any number read through cursors:
+ * count is written last, and a cursor reads it first. Another thread may
+ * reserve room meanwhile; blocks it allocates are linked after the tail
+ * and are empty until appends get to them.
+ */
+public final class PostingList {
+    private static final int NEXT = 0;
+    private static final int USED = 8;
+    private static final int HEADER = 12;
+    private static final int FIRST_BLOCK = 32;
+    private static final int MAX_BLOCK = 4096;
+    private static final int MAX_VARINT = 5;
+    private static final long NONE = -1;
+    static final int SKIP_INTERVAL = 64;
+
+    private final OffHeapArena arena;
+    private long head = NONE;
+    private long tail = NONE;
+    private int tailCapacity = 0;
+    private int tailUsed = 0;
+    // the last block allocated, tail or a block after it
+    private long end = NONE;
+    private int endSize = 0;
+    // guarded by this: appends promised room, and how many fit in the
+    // blocks after tail
+    private int reserved = 0;
+    private int spare = 0;
+    private volatile int count = 0;
+    private int last = -1;
+
+    // skip k is the ordinal at index k*SKIP_INTERVAL and where the next delta starts
+    private int skips = 0;
+    // replaced, never shrunk, by append; volatile so readers see the copies whole
+    private volatile int[] skipOrdinals = new int[1];
+    private volatile long[] skipBlocks = new long[1];
+    private volatile int[] skipPositions = new int[1];
+
+    PostingList(OffHeapArena arena) {
+        this.arena = arena;
+    }
+
+    /**
+     * @param ordinal
+     * Must be greater than every ordinal already in the list.
+     */
+    void append(int ordinal) {
+        reserve();
+        appendReserved(ordinal);
+    }
+
+    /**
+     * Appends into room a reserve() made, so it never allocates.
+     */
+    synchronized void appendReserved(int ordinal) {
+        if (ordinal <= last)
+            throw new IllegalArgumentException("ordinals are appended in increasing order; "
+                    + ordinal +" after "+ last);
+        if (tail == NONE || tailCapacity - tailUsed < MAX_VARINT)
+            nextBlock();
+        reserved--;
+        int delta = ordinal - last;
+        long at = tail + HEADER + tailUsed;
+        while ((delta & ~0x7f) != 0) {
+            arena.put(at++, (byte) ((delta & 0x7f) | 0x80));
+            delta >>>= 7;
+        }
+        arena.put(at++, (byte) delta);
+        tailUsed = (int) (at - tail - HEADER);
+        arena.putInt(tail + USED, tailUsed);
+        if (count % SKIP_INTERVAL == 0)
+            addSkip(ordinal);
+        count++;
+        last = ordinal;
+    }
+
+    /**
+     * Allocates blocks until there is room for one more appendReserved
+     * than already reserved, so that it can't run into the arena's cap.
+     *
+     * @throws IllegalStateException
+     * if the arena is used up; nothing is reserved then.
+     */
+    synchronized void reserve() {
+        while (tailRoom() + spare <= reserved)
+            addBlock();
+        reserved++;
+    }
+
+    /**
+     * Gives back a reserve() that won't be appended.
+     */
+    synchronized void unreserve() {
+        reserved--;
+    }
+
+    // how many appends certainly fit in the tail
+    private int tailRoom() {
+        return tail == NONE ? 0 : (tailCapacity - tailUsed) / MAX_VARINT;
+    }
+
+    private void addSkip(int ordinal) {
+        if (skips == skipOrdinals.length) {
+            skipOrdinals = Arrays.copyOf(skipOrdinals, skips * 2);
+            skipBlocks = Arrays.copyOf(skipBlocks, skips * 2);
+            skipPositions = Arrays.copyOf(skipPositions, skips * 2);
+        }
+        skipOrdinals[skips] = ordinal;
+        skipBlocks[skips] = tail;
+        skipPositions[skips] = tailUsed;
+        skips++;
+    }
+
+    private static int sizeAfter(int size) {
+        return Math.min(MAX_BLOCK, size * 2);
+    }
+
+    /**
+     * Allocates a block after end; the first one becomes the tail too.
+     */
+    private void addBlock() {
+        int size = end == NONE ? FIRST_BLOCK : sizeAfter(endSize);
+        long block = arena.allocate(size);
+        arena.putLong(block + NEXT, NONE);
+        arena.putInt(block + USED, 0);
+        if (end == NONE) {
+            head = block;
+            tail = block;
+            tailCapacity = size - HEADER;
+            tailUsed = 0;
+        } else {
+            arena.putLong(end + NEXT, block);
+            spare += (size - HEADER) / MAX_VARINT;
+        }
+        end = block;
+        endSize = size;
+    }
+
+    /**
+     * Moves the tail on to the next block, allocating it if it isn't yet.
+     */
+    private void nextBlock() {
+        if (tail == NONE) {
+            addBlock();
+            return;
+        }
+        if (tail == end)
+            addBlock();
+        tail = arena.getLong(tail + NEXT);
+        tailCapacity = sizeAfter(tailCapacity + HEADER) - HEADER;
+        tailUsed = 0;
+        spare -= tailCapacity / MAX_VARINT;
+    }
+
+    /**
+     * How many ordinals are in the list.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The greatest ordinal in the list, or -1 when it is empty.
+     */
+    public int last() {
+        return last;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Reads the ordinals in increasing order. Only sees the ordinals that
+     * were in the list when it was created.
+     */
+    public final class Cursor {
+        private final int size = count;
+        private final int[] skipOrdinals = PostingList.this.skipOrdinals;
+        private final long[] skipBlocks = PostingList.this.skipBlocks;
+        private final int[] skipPositions = PostingList.this.skipPositions;
+        private long block = head;
+        private int pos = 0;
+        private int index = -1;
+        private int value = -1;
+
+        /**
+         * @return
+         * The next ordinal, or -1 once the list is exhausted.
+         */
+        public int next() {
+            if (index + 1 >= size) {
+                index = size;
+                return -1;
+            }
+            if (pos == arena.getInt(block + USED)) {
+                block = arena.getLong(block + NEXT);
+                pos = 0;
+            }
+            long at = block + HEADER + pos;
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = arena.get(at++);
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            pos = (int) (at - block - HEADER);
+            index++;
+            value += delta;
+            return value;
+        }
+
+        /**
+         * Moves forward to the first ordinal at least target. Doesn't move
+         * if the current ordinal already is.
+         *
+         * @return
+         * That ordinal, or -1 if there is none.
+         */
+        public int advance(int target) {
+            if (index >= size)
+                return -1;
+            if (index >= 0 && value >= target)
+                return value;
+            int k = index < 0 ? 0 : index / SKIP_INTERVAL + 1;
+            int limit = (size - 1) / SKIP_INTERVAL + 1;
+            if (k < limit && skipOrdinals[k] <= target) {
+                // gallop to a skip past target, then binary search back
+                int lo = k;
+                int step = 1;
+                int hi = lo + step;
+                while (hi < limit && skipOrdinals[hi] <= target) {
+                    lo = hi;
+                    step <<= 1;
+                    hi = lo + step;
+                }
+                hi = Math.min(hi, limit);
+                // skipOrdinals[lo] <= target < skipOrdinals[hi] (when hi < limit)
+                while (hi - lo > 1) {
+                    int mid = (lo + hi) >>> 1;
+                    if (skipOrdinals[mid] <= target)
+                        lo = mid;
+                    else
+                        hi = mid;
+                }
+                block = skipBlocks[lo];
+                pos = skipPositions[lo];
+                index = lo * SKIP_INTERVAL;
+                value = skipOrdinals[lo];
+                if (value == target)
+                    return value;
+            }
+            int v;
+            do {
+                v = next();
+            } while (v >= 0 && v < target);
+            return v;
+        }
+    }
+}
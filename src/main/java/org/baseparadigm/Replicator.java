@@ -0,0 +1,331 @@
+package org.baseparadigm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies everything put into one repo into a backup repo, in order, on its
+ * own thread. Writes wait in a bounded queue and are handed to the backup
+ * in batches; what happens when the queue is full is up to the Overflow
+ * policy. Failed batches are retried with a doubling delay before they are
+ * counted as failed and skipped.
+ *
+ * Obtain one with Repo.addBackup.
+ */
+public class Replicator {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_MILLIS = 10;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * What put does when the queue for a backup is full.
+     */
+    public static enum Overflow {
+        /**
+         * Wait for room; backpressure slows down writers to the pace of the backup.
+         */
+        BLOCK,
+        /**
+         * Drop the write being made.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest write still waiting to make room.
+         */
+        DROP_OLDEST
+    }
+
+    private static class Pending {
+        final ContentId key;
+        /**
+         * null for values stored by streaming; they are read back when written.
+         */
+        final byte[] value;
+        final long enqueuedNanos = System.nanoTime();
+        Pending(ContentId key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public final Repo backup;
+    public final Overflow overflow;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final BlockingQueue<Pending> queue;
+    private final Thread worker;
+    private volatile boolean closed = false;
+    // guarded by this: set by close before closed, and the enqueues
+    // that got past it and haven't finished queueing
+    private boolean closing = false;
+    private int entering = 0;
+    private volatile Pending head = null;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * Writes that have left the queue one way or another; await watches this.
+     */
+    private final AtomicLong settled = new AtomicLong();
+    private volatile RuntimeException lastFailure = null;
+
+    public Replicator(Repo backup) {
+        this(backup, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, Overflow.BLOCK, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param capacity
+     * How many writes may wait for the backup.
+     *
+     * @param batchSize
+     * The most writes handed to the backup at once.
+     *
+     * @param maxAttempts
+     * How many times a batch is tried before it is given up on.
+     */
+    public Replicator(Repo backup, int capacity, int batchSize, Overflow overflow, int maxAttempts) {
+        if (capacity < 1 || batchSize < 1 || maxAttempts < 1)
+            throw new IllegalArgumentException("capacity, batchSize and maxAttempts must be positive");
+        this.backup = backup;
+        this.overflow = overflow;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.queue = new ArrayBlockingQueue<Pending>(capacity);
+        this.worker = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "replicator-"+ threadCount.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a write for the backup according to the Overflow policy. Once
+     * closed, the write is dropped: a put can still get here after
+     * Repo.removeBackup, and its value is stored all the same.
+     */
+    void enqueue(ContentId key, byte[] value) {
+        synchronized (this) {
+            // counted before it is queued, so the worker can never settle it
+            // first and let an await return while it is still pending
+            enqueued.incrementAndGet();
+            if (closing) {
+                dropped.incrementAndGet();
+                settle(1);
+                return;
+            }
+            entering++;
+        }
+        try {
+            queue(new Pending(key, value));
+        } finally {
+            synchronized (this) {
+                if (--entering == 0)
+                    notifyAll();
+            }
+        }
+    }
+
+    private void queue(Pending p) {
+        switch (overflow) {
+        case BLOCK:
+            try {
+                queue.put(p);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                settle(1);
+            }
+            break;
+        case DROP_NEWEST:
+            if (! queue.offer(p)) {
+                dropped.incrementAndGet();
+                settle(1);
+            }
+            break;
+        case DROP_OLDEST:
+            while (! queue.offer(p)) {
+                if (queue.poll() != null) {
+                    dropped.incrementAndGet();
+                    settle(1);
+                }
+            }
+            break;
+        }
+    }
+
+    private void drain() {
+        List<Pending> batch = new ArrayList<Pending>(batchSize);
+        while (! closed || ! queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                head = first;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                continue; // the loop condition decides when to stop
+            }
+            queue.drainTo(batch, batchSize - 1);
+            write(batch);
+            head = null;
+            settle(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        Map<ContentId, byte[]> values = new LinkedHashMap<ContentId, byte[]>();
+        List<ContentId> streamed = new ArrayList<ContentId>();
+        for (Pending p : batch)
+            if (p.value == null)
+                streamed.add(p.key);
+            else
+                values.put(backup.idFor(p.value), p.value);
+        long delay = FIRST_RETRY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (! values.isEmpty())
+                    backup.putBatch(values);
+                for (ContentId key : streamed)
+                    stream(key);
+                replicated.addAndGet(batch.size());
+                return;
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                if (attempt >= maxAttempts) {
+                    failed.addAndGet(batch.size());
+                    return;
+                }
+                retries.incrementAndGet();
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    // keep retrying; close() waits for the queue to drain
+                }
+                delay *= 2;
+            }
+        }
+    }
+
+    /**
+     * Copies a value too big to queue from the repo it was put in.
+     */
+    private void stream(ContentId key) {
+        if (backup.getIdScheme().name().equals(key.repo.getIdScheme().name())
+                && backup.containsKey(key.in(backup)))
+            return; // don't read it just to find out
+        try {
+            InputStream in = key.repo.openStream(key);
+            if (in == null)
+                throw new IllegalStateException(key +" is gone from the repo it was put in");
+            try {
+                backup.put(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("can't copy "+ key +" to the backup", e);
+        }
+    }
+
+    private void settle(int count) {
+        settled.addAndGet(count);
+        synchronized (settled) {
+            settled.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every write queued before this call has been replicated,
+     * dropped, or given up on.
+     *
+     * @return
+     * false if the timeout elapsed first.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long target = enqueued.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (settled) {
+            while (settled.get() < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(settled, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * await without a timeout.
+     */
+    public void flush() throws InterruptedException {
+        await(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting writes, finishes the ones queued, and stops the worker.
+     */
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closing = true;
+            // the worker only stops once nothing more can be queued
+            while (entering > 0)
+                wait();
+        }
+        closed = true;
+        worker.join();
+    }
+
+    /**
+     * Writes handed to the replicator, including those the Overflow policy
+     * turned away.
+     */
+    public long getEnqueued() { return enqueued.get(); }
+    public long getReplicated() { return replicated.get(); }
+    /**
+     * Writes rejected or evicted by the Overflow policy.
+     */
+    public long getDropped() { return dropped.get(); }
+    /**
+     * Writes given up on after maxAttempts; see getLastFailure.
+     */
+    public long getFailed() { return failed.get(); }
+    public long getRetries() { return retries.get(); }
+    public RuntimeException getLastFailure() { return lastFailure; }
+
+    /**
+     * The number of writes accepted but not yet replicated, dropped, or failed.
+     */
+    public long getLag() {
+        return Math.max(0, enqueued.get() - settled.get());
+    }
+
+    /**
+     * How long the oldest write still waiting has been waiting, or zero.
+     */
+    public long getLagMillis() {
+        Pending oldest = head;
+        if (oldest == null)
+            oldest = queue.peek();
+        if (oldest == null)
+            return 0;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueuedNanos);
+    }
+}
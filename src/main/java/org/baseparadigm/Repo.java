@@ -1,21 +1,33 @@
 package org.baseparadigm;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executor;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A content addressed store: every value is keyed by the id computed from it.
+ * Instances are safe for concurrent use as long as the backing map is;
+ * the default backing map is a ConcurrentHashMap and each thread hashes
+ * with its own MessageDigest.
+ */
 public class Repo implements Map<ContentId, byte[]>{
     /**
      * The default KEY_LENGTH determined by the COMMONS_ID_ALGORITHM.
@@ -24,127 +36,190 @@ public class Repo implements Map<ContentId, byte[]>{
     public static final String COMMONS_ID_ALGORITHM = "SHA-512";
     /**
      * This is because big integers are signed and it is sometimes necessary to transform it to unsigned.
-     * Subclasses change this if you implement a new id algorithm with a different range of possible values.
+     * @deprecated
+     * Only right for SHA512 ids; use getMaxRange(), which follows the repo's IdScheme.
      */
+    @Deprecated
     public static final BigInteger maxRange = new BigInteger("6677614145500822869199612450086833169372076310647976309689773738637898163997413592367992297518418569869153121528171484150693110263204762287047346759892863");
-    public BigInteger getMaxRange() { return maxRange; }
+    /**
+     * 2^(8 * keyLength) - 1, the span of the ids of this repo's IdScheme.
+     */
+    public BigInteger getMaxRange() {
+        return BigInteger.ONE.shiftLeft(8 * keyLength).subtract(BigInteger.ONE);
+    }
 //    public static final BigInteger minRange = new BigInteger("-6677614145500822869199612450086833169372076310647976309689773738637898163997413592367992297518418569869153121528171484150693110263204762287047346759892864");
     public static final Charset defaultCharset = Charset.forName("UTF8");
     public static Repo commons;
-    private Map<ContentId, byte[]> map = new HashMap<ContentId, byte[]>();
-    private MessageDigest md;
+    private final Map<ContentId, byte[]> map;
+    private final IdScheme idScheme;
+    /**
+     * MessageDigest instances are stateful, so each thread gets its own.
+     */
+    private final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return idScheme.newDigest();
+        }
+    };
     
     /**
-     * Subclasses should change this according to the way they create content ids.
+     * Set by the IdScheme the repo is constructed with.
      */
-    public final int keyLength = COMMONS_KEY_LENGTH;
+    public final int keyLength;
     
     private byte[] metaData = null;
     
+    /**
+     * The ids of the SubjectPredicateObject names, like idFor("OBJECTS"),
+     * computed with this repo's IdScheme.
+     */
+    public final ContentId OBJECTSid;
+    public final ContentId PREDICATESid;
+    public final ContentId SUBJECTSid;
+    public final ContentId AUTHORSid;
+    public final ContentId ASSUMPTIONSid;
+    public final ContentId PATTERNSid;
+    
 
+    /**
+     * @param content
+     * The backing map. It needs to be safe for concurrent use if this Repo will be.
+     * 
+     * @param idScheme
+     * How ids are computed; it decides the key length.
+     */
+    public Repo(Map<ContentId, byte[]> content, IdScheme idScheme) {
+        this.map = content;
+        this.idScheme = idScheme;
+        this.keyLength = idScheme.keyLength();
+        // fail at construction rather than on the first idFor
+        md.get();
+        OBJECTSid     = wellKnownId(SubjectPredicateObject.OBJECTS);
+        PREDICATESid  = wellKnownId(SubjectPredicateObject.PREDICATES);
+        SUBJECTSid    = wellKnownId(SubjectPredicateObject.SUBJECTS);
+        AUTHORSid     = wellKnownId(SubjectPredicateObject.AUTHORS);
+        ASSUMPTIONSid = wellKnownId(SubjectPredicateObject.ASSUMPTIONS);
+        PATTERNSid    = wellKnownId(SubjectPredicateObject.PATTERNS);
+    }
+    
     public Repo(Map<ContentId, byte[]> content) {
-        map = content;
-        init();
+        this(content, IdScheme.SHA512);
+    }
+    
+    public Repo(IdScheme idScheme) {
+        this(new ConcurrentHashMap<ContentId, byte[]>(), idScheme);
     }
+    
     public Repo(Map.Entry<ContentId, byte[]>... content ) {
-        init();
+        this(IdScheme.SHA512);
         for (Map.Entry<ContentId, byte[]> metaEntry : content)
             put(metaEntry);
     }
 
     public Repo() {
-        init();
+        this(IdScheme.SHA512);
     }
     
-    public static Repo commonsInstance() {
+    public static synchronized Repo commonsInstance() {
         if (commons == null)
             commons= new Repo();
         return commons;
     }
     
-    private void init() {
-        try {
-            md = MessageDigest.getInstance(COMMONS_ID_ALGORITHM);
-        } catch (NoSuchAlgorithmException e) {
-            throw new Error("depending on "+ COMMONS_ID_ALGORITHM +" being available.", e);
-        }
+    private ContentId wellKnownId(SubjectPredicateObject spo) {
+        // not idFor(byte[]), which subclasses may override and which runs before their constructors
+        MessageDigest digest = md.get();
+        digest.update(spo.name().getBytes(defaultCharset));
+        return idFor(digest);
     }
     
+    public IdScheme getIdScheme() {
+        return idScheme;
+    }
     
-    
-
-    // in groovysh:
-    // c = 0; d = java.security.MessageDigest.getInstance("SHA-512");
-    // d.digest("OBJECTS".getBytes()).each{ b -> print("$b, "); if(++c % 8 == 0) println(); }
-    
-    // TODO for 0.1 set these in the constructor. if a different id scheme is used, these ids will be wrong.
     /**
-     * The sha512 hash of "OBJECTS".
-     * BigIntegers are good representations of ids because they are comparable and immutable.
+     * An id from a digest that has been fed a whole value, truncated to the
+     * key length. Streaming puts use this with a digest from getIdScheme().
      */
-    public final ContentId OBJECTSid = new ContentId(this,
-            new byte[]{ -66, 91, -126, 63, -122, 94, -15, 25, -108, -27, -71, -128, -68, -1, -5, 49, -99, -114, -119
-            , -20, 108, -99, 117, -58, 5, -23, -5, -22, -10, 18, 33, -82, -43, -18, -82, 24, 94, 47, -30, -78, -26, -15
-            , 94, -44, -120, 121, 67, -21, 52, 53, -128, -57, -35, 36, 112, 35, -45, 75, 117, -15, -87, 59, -14, -40 }
-            );
+    protected ContentId idFor(MessageDigest digest) {
+        byte[] d = digest.digest();
+        if (d.length != keyLength)
+            d = Arrays.copyOf(d, keyLength);
+        return ContentId.wrap(this, d);
+    }
+    
     /**
-     * The sha512 hash of "PREDICATE".
+     * add backups to do things like persist to disk and keep stuff on other machines
      */
-    public final ContentId PREDICATESid = new ContentId(this,
-            new byte[]{ -66, -72, 19, 113, -106, 84, -17, -22, 97
-            , -92, 56, 30, 66, -71, 27, 61, 101, 31, -103, 42, -81, 89, -93, -97, 9, -86, -92, -54, 102, -44, -18, 127
-            , -93, 105, -126, -33, 13, 86, 49, -122, 76, 107, 10, 79, -58, 110, -102, -3, -39, 111, 38, 35, -124, -9
-            , -18, 118, -114, 77, 14, 61, 77, -42, -56, 80 });
+    private final List<Replicator> replicators = new CopyOnWriteArrayList<Replicator>();
+    
     /**
-     * The sha512 hash of "SUBJECT".
+     * Replicate every future put to backup with the default Replicator settings.
      */
-    public final ContentId SUBJECTSid = new ContentId(this,
-            new byte[]{ -42, -44, -12, 69, 11, 52, 123, 13, -108
-            , 65, 39, 120, 22, -36, -109, 67, -57, 50, -106, 70, -91, 0, -107, -65, 66, -60, 85, -25, 83, -126, 33, 20
-            , -41, 2, 40, 86, -36, 1, -104, 76, 46, 83, 4, -55, 56, -33, -19, -6, 69, 50, -44, -39, -105, -99, 118, 7
-            , -64, -67, -91, 55, -93, 1, 100, 111 });
+    public Replicator addBackup(Repo backup) {
+        return addBackup(new Replicator(backup));
+    }
+    
+    public Replicator addBackup(Replicator replicator) {
+        replicators.add(replicator);
+        return replicator;
+    }
+    
     /**
-     * The sha512 hash of "AUTHORS".
+     * Stops replicating to backup once what is already queued for it is written.
+     * @return
+     * false if backup was not a backup of this repo.
      */
-    public final ContentId AUTHORSid = new ContentId(this,
-            new byte[]{ -85, -24, -99, 26, 22, 67, 114, -21, -59, 67
-            , -20, -128, 106, -103, -110, 4, -16, 109, 41, -14, 42, -80, 19, 24, -58, -121, -64, 46, 117, 98, -111, 109
-            , 51, -25, -66, 35, -126, -73, -41, -29, -67, 42, -18, -3, -43, 43, -23, 87, -97, 121, 53, 83, 98, 105, -84
-            , -68, -1, 62, 7, 68, -99, -85, -97, 113 });
+    public boolean removeBackup(Repo backup) throws InterruptedException {
+        for (Replicator r : replicators)
+            if (r.backup == backup && replicators.remove(r)) {
+                r.close();
+                return true;
+            }
+        return false;
+    }
+    
+    public List<Repo> getBackups() {
+        List<Repo> ret = new ArrayList<Repo>();
+        for (Replicator r : replicators)
+            ret.add(r.backup);
+        return Collections.unmodifiableList(ret);
+    }
+    
+    public List<Replicator> getReplicators() {
+        return Collections.unmodifiableList(replicators);
+    }
+    
     /**
-     * The sha512 hash of "ASSUMPTIONS".
+     * Waits until every backup has caught up with the puts made before this call.
+     * @return
+     * false if the timeout elapsed first.
      */
-    public final ContentId ASSUMPTIONSid = new ContentId(this,
-            new byte[]{ -121, 85, 89, 84, -62, -6, 10, -44, 42
-            , 84, 66, 35, 6, -28, -83, -12, -69, -98, 92, -103, 74, 123, 34, 92, -11, -23, 63, 66, 98, -106, -98, -12
-            , -108, -75, -46, 116, -120, -72, 92, 56, 124, 121, -52, -119, 118, -87, 104, -64, 70, -62, -101, -98, -13
-            , 94, 109, 68, -93, -128, 83, 39, -7, -65, 50, -84 });
+    public boolean awaitBackups(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Replicator r : replicators)
+            if (! r.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                return false;
+        return true;
+    }
+    
     /**
-     * The sha512 hash of "PATTERNS".
+     * Hashes values in parallel for putAll(Iterable).
      */
-    public final ContentId PATTERNSid = new ContentId(this,
-            new byte[]{
-             -128, 22 , -51, 107, 60 , 13 , -87 , 95
-            , 25 , 16 , 74 , 89 , -15, -84, -103, 9
-            ,-13 , 95 , -85, 78 , 52 , 59 , -20 , -58
-            ,-21, -125, 115, 53 , 65, -119, -38 , 14
-            ,-100, -44, -26, -57, -99, -42, -80 , -94
-            , 23 , -36, -47, -32, 13 , 80 , -66 , 30
-            , 118, 78 , 112, -9, -108, 12 , -40 , 15
-            , 27 , 51 , 53 , 109, 95, -102, -58 , 39
-            });
+    public static ForkJoinPool ingestPool = ForkJoinPool.commonPool();
     
     /**
-     * add to backups to do things like persist to disk and keep stuff on other machines
+     * putAll(Iterable) hashes and stores at most this many values at a time.
      */
-    public List<Repo> backups = new LinkedList<Repo>();
+    public static int ingestBatchSize = 4096;
     
-    public List<Repo> getBackups() {return backups;}
-
     /**
-     * used for backup operations. set to null to disable backup.
+     * putAll(Iterable) also cuts a batch short once it holds this many bytes.
      */
-    public static Executor ex = new ThreadPoolExecutor(0, 2, 1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+    public static long ingestBatchBytes = 64L << 20;
+    
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
 
     
     @Override
@@ -170,23 +245,63 @@ public class Repo implements Map<ContentId, byte[]>{
     }
     
     /**
-     * @return Metadata for this repository including things like KEY_LENGTH.
+     * A read only buffer over the value for key, for readers that can avoid
+     * copying it. Repos that can hand out their storage directly override this.
+     * 
+     * @return
+     * null if there is no value for the key
+     */
+    public ByteBuffer getBuffer(ContentId key) {
+        byte[] value = get(key);
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Reads the value for key without needing it all in memory at once,
+     * for repos that keep values somewhere other than the heap. By default
+     * it reads from getBuffer.
+     * 
+     * @return
+     * null if there is no value for the key
+     */
+    public InputStream openStream(ContentId key) throws IOException {
+        ByteBuffer value = getBuffer(key);
+        return value == null ? null : new Util.ByteBufferInputStream(value);
+    }
+    
+    /**
+     * @return Metadata for this repository including things like KEY_LENGTH
+     * and the name of the ID_SCHEME.
      */
     public byte[] getRepoMetadata() {
         if (this.metaData == null)
-            this.metaData = new MapDatum(this).build("KEY_LENGTH", 64).toByteArray();
+            this.metaData = new MapDatum(this)
+                    .build("KEY_LENGTH", keyLength)
+                    .build("ID_SCHEME", idScheme.name().getBytes(defaultCharset))
+                    .toByteArray();
         return this.metaData;
     }
     
-    public Set<byte[]> getAll(Iterable<ContentId> keys) {
-        Set<byte[]> ret = new HashSet<byte[]>();
-        for (ContentId k : keys)
-            ret.add(get(k));
+    /**
+     * Looks up many values at once. Repos whose reads are slow override this
+     * to issue them together; datums use it to read all their children in
+     * one call.
+     * 
+     * @return
+     * The values found, in the order of keys; missing keys are left out.
+     */
+    public Map<ContentId, byte[]> getAll(Iterable<ContentId> keys) {
+        Map<ContentId, byte[]> ret = new LinkedHashMap<ContentId, byte[]>();
+        for (ContentId k : keys) {
+            byte[] value = get(k);
+            if (value != null)
+                ret.put(k, value);
+        }
         return ret;
     }
     
     /**
-     * The default is BaseParadigm.COMMONS_KEY_LENGTH.
+     * The default is COMMONS_KEY_LENGTH.
      * @return
      * The key length.
      */
@@ -206,19 +321,83 @@ public class Repo implements Map<ContentId, byte[]>{
     /**
      * If you use this method, be sure that the key.equals(idFor(value)).
      * Unlike put(byte[] value), this put conforms to the Map interface method signature.
+     * 
+     * A value already stored is neither written again nor replicated again,
+     * since the same id always means the same content.
+     * 
+     * @return
+     * The value if it was already stored, like Map.put.
      */
     @Override
     public byte[] put(final ContentId key, final byte[] value) {
         assert key.equals(idFor(value));
-        if (Repo.ex != null)
-            Repo.ex.execute(new Runnable() {
-                public void run() {
-                    for (Repo b : backups)
-                        b.put(value);
-                }
-            });
+        if (isStored(key)) {
+            deduplicated.incrementAndGet();
+            return value;
+        }
+        byte[] previous = store(key, value);
+        stored.incrementAndGet();
+        replicate(key, value);
+        return previous;
+    }
+    
+    /**
+     * Whether a put of key can be skipped. It must not have false positives;
+     * by default it is containsKey.
+     */
+    protected boolean isStored(ContentId key) {
+        return containsKey(key);
+    }
+    
+    /**
+     * Counts a put that stored a new value; for subclasses with their own write paths.
+     */
+    protected void countStored() {
+        stored.incrementAndGet();
+    }
+    
+    /**
+     * Counts a put skipped because the value was already stored.
+     */
+    protected void countDeduplicated() {
+        deduplicated.incrementAndGet();
+    }
+    
+    /**
+     * Puts that wrote a new value.
+     */
+    public long getStoredCount() {
+        return stored.get();
+    }
+    
+    /**
+     * Puts skipped because the value was already there.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.get();
+    }
+    
+    /**
+     * The fraction of puts that were skipped as duplicates, or 0 before any put.
+     */
+    public double getDedupRatio() {
+        long d = deduplicated.get();
+        long total = d + stored.get();
+        return total == 0 ? 0 : (double) d / total;
+    }
+    
+    /**
+     * Keeps the value without replicating it; subclasses that store values
+     * elsewhere override this rather than put.
+     */
+    protected byte[] store(ContentId key, byte[] value) {
         return this.map.put(key, value);
     }
+    
+    private void replicate(ContentId key, byte[] value) {
+        for (Replicator r : replicators)
+            r.enqueue(key, value);
+    }
     /**
      * Convenience for put(ContentId key, byte[] value).
      */
@@ -239,6 +418,26 @@ public class Repo implements Map<ContentId, byte[]>{
         put(id, value);
         return id;
     }
+    /**
+     * Stores everything read from in, which is not closed. This repo keeps
+     * values on the heap, so it reads the whole stream first; repos
+     * storing values elsewhere override this to hash while they copy.
+     * 
+     * @return
+     * The key that will retrieve the content read.
+     */
+    public ContentId put(InputStream in) throws IOException {
+        return put(Util.drain(in));
+    }
+    
+    /**
+     * Replicates a value stored without ever being in memory as a whole;
+     * replicators read it back with openStream.
+     */
+    protected void replicateStream(ContentId key) {
+        replicate(key, null);
+    }
+    
     /**
      * put(data.toByteArray())
      */
@@ -257,7 +456,9 @@ public class Repo implements Map<ContentId, byte[]>{
      * The identifier to retrieve the content given.
      */
     public ContentId idFor(byte[] value) {
-        return new ContentId(this, md.digest(value));
+        MessageDigest digest = md.get();
+        digest.update(value);
+        return idFor(digest);
     }
     public ContentId idFor(ToByteArray value) {
         return idFor(value.toByteArray());
@@ -269,15 +470,97 @@ public class Repo implements Map<ContentId, byte[]>{
     }
     
     /**
+     * Bulk ingest. Values are taken in batches, hashed in parallel on
+     * ingestPool, deduplicated against the batch, and handed to putBatch,
+     * which skips those already stored.
+     * 
      * @return
-     * A set of the keys which will retrieve the given values.
+     * The keys which will retrieve the given values, one per value in the
+     * order given, duplicates included.
      */
-    public Set<BigInteger> putAll(Iterable<byte[]> values){
-        Set<BigInteger> ret = new HashSet<BigInteger>();
-        for (byte[] v : values)
-            ret.add(put(v));
+    public List<ContentId> putAll(Iterable<byte[]> values){
+        List<ContentId> ret = new ArrayList<ContentId>();
+        Iterator<byte[]> it = values.iterator();
+        List<byte[]> chunk = new ArrayList<byte[]>();
+        while (it.hasNext()) {
+            chunk.clear();
+            long chunkBytes = 0;
+            while (it.hasNext() && chunk.size() < ingestBatchSize && chunkBytes < ingestBatchBytes) {
+                byte[] v = it.next();
+                chunk.add(v);
+                chunkBytes += v.length;
+            }
+            ContentId[] ids = new ContentId[chunk.size()];
+            ingestPool.invoke(new HashTask(chunk, ids, 0, ids.length));
+            Map<ContentId, byte[]> batch = new LinkedHashMap<ContentId, byte[]>();
+            for (int i = 0; i < ids.length; i++) {
+                ret.add(ids[i]);
+                if (batch.containsKey(ids[i]))
+                    deduplicated.incrementAndGet();
+                else
+                    batch.put(ids[i], chunk.get(i));
+            }
+            putBatch(batch);
+        }
         return ret;
     }
+    
+    /**
+     * Stores and replicates the values of a batch whose keys are already
+     * computed and checked, skipping those already stored.
+     */
+    protected void putBatch(Map<ContentId, byte[]> batch) {
+        Map<ContentId, byte[]> fresh = new LinkedHashMap<ContentId, byte[]>();
+        for (Map.Entry<ContentId, byte[]> e : batch.entrySet())
+            if (isStored(e.getKey()))
+                deduplicated.incrementAndGet();
+            else
+                fresh.put(e.getKey(), e.getValue());
+        if (fresh.isEmpty())
+            return;
+        storeBatch(fresh);
+        stored.addAndGet(fresh.size());
+        for (Map.Entry<ContentId, byte[]> e : fresh.entrySet())
+            replicate(e.getKey(), e.getValue());
+    }
+    
+    /**
+     * Subclasses override this where storing many values at once is cheaper
+     * than storing them one at a time.
+     */
+    protected void storeBatch(Map<ContentId, byte[]> batch) {
+        for (Map.Entry<ContentId, byte[]> e : batch.entrySet())
+            store(e.getKey(), e.getValue());
+    }
+    
+    /**
+     * Fills ids[i] with idFor(values.get(i)), splitting the range across the pool.
+     */
+    private class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 16;
+        private final List<byte[]> values;
+        private final ContentId[] ids;
+        private final int from, to;
+        
+        HashTask(List<byte[]> values, ContentId[] ids, int from, int to) {
+            this.values = values;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++)
+                    ids[i] = idFor(values.get(i));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new HashTask(values, ids, from, mid), new HashTask(values, ids, mid, to));
+        }
+    }
     @Override
     public byte[] remove(Object key) {
         return this.map.remove(key);
@@ -0,0 +1,177 @@
+package org.baseparadigm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking operations of a repo on an executor and hands back
+ * CompletableFutures, so a caller can fan out many reads without tying up
+ * its own threads.
+ *
+ * By default each operation gets a virtual thread when the JVM has them
+ * (Java 21 and up); otherwise a pool of DEFAULT_POOL_SIZE daemon threads,
+ * enough to keep a disk or network queue full, is shared by every
+ * RepoAsync in the process.
+ */
+public class RepoAsync {
+    public static final int DEFAULT_POOL_SIZE = 64;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    // created on first use, never shut down
+    private static ExecutorService shared = null;
+
+    public final Repo repo;
+    private final ExecutorService executor;
+
+    public RepoAsync(Repo repo) {
+        this(repo, defaultExecutor());
+    }
+
+    /**
+     * @param executor
+     * Runs the operations; it is the caller's to shut down.
+     */
+    public RepoAsync(Repo repo, ExecutorService executor) {
+        this.repo = repo;
+        this.executor = executor;
+    }
+
+    /**
+     * The executor shared by everything that doesn't bring its own: a
+     * virtual thread per task if the JVM supports it, otherwise a pool of
+     * daemon threads. Don't shut it down.
+     */
+    public static synchronized ExecutorService defaultExecutor() {
+        if (shared == null)
+            shared = newDefaultExecutor();
+        return shared;
+    }
+
+    private static ExecutorService newDefaultExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception notAvailable) {
+            // older JVM, or virtual threads are still a preview feature
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "repo-async-"+ threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return
+     * A future for repo.get(key), which is null if there is no value.
+     */
+    public CompletableFuture<byte[]> getAsync(final ContentId key) {
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+            public byte[] get() {
+                return repo.get(key);
+            }
+        }, executor);
+    }
+
+    /**
+     * Reads every key at once.
+     *
+     * @return
+     * A future for the values found, in the order of keys; missing keys
+     * are left out. It fails if any read does.
+     */
+    public CompletableFuture<Map<ContentId, byte[]>> getAllAsync(Iterable<ContentId> keys) {
+        final List<ContentId> order = new ArrayList<ContentId>();
+        final List<CompletableFuture<byte[]>> reads = new ArrayList<CompletableFuture<byte[]>>();
+        for (ContentId k : keys) {
+            order.add(k);
+            reads.add(getAsync(k));
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()]))
+                .thenApply(new Function<Void, Map<ContentId, byte[]>>() {
+                    public Map<ContentId, byte[]> apply(Void done) {
+                        Map<ContentId, byte[]> ret = new LinkedHashMap<ContentId, byte[]>();
+                        for (int i = 0; i < order.size(); i++) {
+                            byte[] value = reads.get(i).join();
+                            if (value != null)
+                                ret.put(order.get(i), value);
+                        }
+                        return ret;
+                    }
+                });
+    }
+
+    public CompletableFuture<ContentId> putAsync(final byte[] value) {
+        return CompletableFuture.supplyAsync(new Supplier<ContentId>() {
+            public ContentId get() {
+                return repo.put(value);
+            }
+        }, executor);
+    }
+
+    /**
+     * Streams in to the repo and closes it.
+     */
+    public CompletableFuture<ContentId> putAsync(final InputStream in) {
+        return CompletableFuture.supplyAsync(new Supplier<ContentId>() {
+            public ContentId get() {
+                try {
+                    try {
+                        return repo.put(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Inflates every GraphDatum in data at once, each reading its own blob.
+     *
+     * @return
+     * A future for the graph data, in the order of data.
+     */
+    public CompletableFuture<List<GraphDatum>> inflateAsync(GraphData data) {
+        final List<CompletableFuture<GraphDatum>> inflations = new ArrayList<CompletableFuture<GraphDatum>>();
+        for (final ContentId id : data.data) {
+            assert id.repo == repo;
+            inflations.add(CompletableFuture.supplyAsync(new Supplier<GraphDatum>() {
+                public GraphDatum get() {
+                    return new GraphDatum(repo, id);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(inflations.toArray(new CompletableFuture<?>[inflations.size()]))
+                .thenApply(new Function<Void, List<GraphDatum>>() {
+                    public List<GraphDatum> apply(Void done) {
+                        List<GraphDatum> ret = new ArrayList<GraphDatum>(inflations.size());
+                        for (CompletableFuture<GraphDatum> f : inflations)
+                            ret.add(f.join());
+                        return ret;
+                    }
+                });
+    }
+}
@@ -0,0 +1,429 @@
+package org.baseparadigm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read through cache in front of another repo, bounded both by the number
+ * of values and by their total size. Values never change for a given id, so
+ * nothing is ever stale; puts go straight through to the delegate and are
+ * cached on the way.
+ *
+ * Ids handed out by a RepoCache belong to the cache, and datums built on
+ * it read through it. Ids of the delegate are accepted too.
+ *
+ * Values returned by get are shared with the cache and must not be modified.
+ */
+public class RepoCache extends Repo {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    /**
+     * Which value makes room for a new one.
+     */
+    public static enum Eviction {
+        /**
+         * The least recently used.
+         */
+        LRU,
+        /**
+         * A small LRU window admits every new value; values leaving it only
+         * replace the least recently used of the rest if they have been
+         * asked for more often lately. One pass over many cold values can't
+         * flush out the hot ones.
+         */
+        W_TINY_LFU
+    }
+
+    public final Repo delegate;
+    public final Eviction eviction;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // guarded by this; both in access order, eldest first
+    private final LinkedHashMap<ContentId, byte[]> window;
+    private final LinkedHashMap<ContentId, byte[]> main;
+    private final int maxWindowEntries;
+    private long bytes = 0;
+    private final FrequencySketch sketch;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RepoCache(Repo delegate) {
+        this(delegate, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, Eviction.LRU);
+    }
+
+    /**
+     * @param maxEntries
+     * The most values kept.
+     *
+     * @param maxBytes
+     * The most bytes of values kept; bigger values are never cached.
+     */
+    public RepoCache(Repo delegate, int maxEntries, long maxBytes, Eviction eviction) {
+        super(Collections.<ContentId, byte[]>emptyMap(), delegate.getIdScheme());
+        if (maxEntries < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+        this.delegate = delegate;
+        this.eviction = eviction;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.window = new LinkedHashMap<ContentId, byte[]>(16, 0.75f, true);
+        this.main = new LinkedHashMap<ContentId, byte[]>(16, 0.75f, true);
+        if (eviction == Eviction.W_TINY_LFU) {
+            maxWindowEntries = Math.max(1, maxEntries / 100);
+            sketch = new FrequencySketch(maxEntries);
+        } else {
+            maxWindowEntries = 0;
+            sketch = null;
+        }
+    }
+
+    /**
+     * The id as the delegate knows it.
+     */
+    private ContentId outer(Object key) {
+        return ((ContentId) key).in(delegate); // class cast exceptions here are good
+    }
+
+    /**
+     * The id as the cache knows it.
+     */
+    private ContentId inner(Object key) {
+        return ((ContentId) key).in(this);
+    }
+
+    private synchronized byte[] cached(ContentId key) {
+        if (sketch != null)
+            sketch.increment(key);
+        byte[] value = window.get(key);
+        return value != null ? value : main.get(key);
+    }
+
+    private synchronized void cache(ContentId key, byte[] value) {
+        if (value.length > maxBytes || window.containsKey(key) || main.containsKey(key))
+            return;
+        bytes += value.length;
+        if (eviction == Eviction.LRU) {
+            main.put(key, value);
+        } else {
+            window.put(key, value);
+            while (window.size() > maxWindowEntries)
+                admit(removeEldest(window));
+        }
+        while (window.size() + main.size() > maxEntries || bytes > maxBytes)
+            evict(removeEldest(main.isEmpty() ? window : main));
+    }
+
+    /**
+     * A value leaving the window joins main if there is room, or if it is
+     * more popular than main's least recently used value.
+     */
+    private void admit(Map.Entry<ContentId, byte[]> candidate) {
+        if (main.size() + maxWindowEntries >= maxEntries && ! main.isEmpty()) {
+            ContentId victim = main.keySet().iterator().next();
+            if (sketch.frequency(candidate.getKey()) <= sketch.frequency(victim)) {
+                evict(candidate);
+                return;
+            }
+            evict(removeEldest(main));
+        }
+        main.put(candidate.getKey(), candidate.getValue());
+    }
+
+    private static Map.Entry<ContentId, byte[]> removeEldest(LinkedHashMap<ContentId, byte[]> m) {
+        Iterator<Map.Entry<ContentId, byte[]>> it = m.entrySet().iterator();
+        Map.Entry<ContentId, byte[]> eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+
+    private void evict(Map.Entry<ContentId, byte[]> e) {
+        bytes -= e.getValue().length;
+        evictions.incrementAndGet();
+    }
+
+    @Override
+    public byte[] get(Object key) {
+        ContentId id = inner(key);
+        byte[] value = cached(id);
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        value = delegate.get(outer(key));
+        if (value != null)
+            cache(id, value);
+        return value;
+    }
+
+    /**
+     * Serves cached values from memory and reads the rest from the delegate
+     * in one getAll.
+     */
+    @Override
+    public Map<ContentId, byte[]> getAll(Iterable<ContentId> keys) {
+        Map<ContentId, byte[]> found = new HashMap<ContentId, byte[]>();
+        List<ContentId> order = new ArrayList<ContentId>();
+        List<ContentId> missed = new ArrayList<ContentId>();
+        for (ContentId k : keys) {
+            ContentId id = inner(k);
+            order.add(id);
+            byte[] value = cached(id);
+            if (value != null) {
+                hits.incrementAndGet();
+                found.put(id, value);
+            } else {
+                misses.incrementAndGet();
+                missed.add(outer(k));
+            }
+        }
+        if (! missed.isEmpty())
+            for (Map.Entry<ContentId, byte[]> e : delegate.getAll(missed).entrySet()) {
+                ContentId id = inner(e.getKey());
+                cache(id, e.getValue());
+                found.put(id, e.getValue());
+            }
+        Map<ContentId, byte[]> ret = new LinkedHashMap<ContentId, byte[]>();
+        for (ContentId id : order) {
+            byte[] value = found.get(id);
+            if (value != null)
+                ret.put(id, value);
+        }
+        return ret;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(ContentId key) {
+        byte[] value = get(key);
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * Serves cached values from memory; others are streamed from the
+     * delegate without being cached.
+     */
+    @Override
+    public InputStream openStream(ContentId key) throws IOException {
+        byte[] value = cached(inner(key));
+        if (value != null) {
+            hits.incrementAndGet();
+            return new Util.ByteBufferInputStream(ByteBuffer.wrap(value));
+        }
+        misses.incrementAndGet();
+        return delegate.openStream(outer(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return cached(inner(key)) != null || delegate.containsKey(outer(key));
+    }
+
+    @Override
+    protected byte[] store(ContentId key, byte[] value) {
+        byte[] previous = delegate.put(outer(key), value);
+        cache(key, value);
+        return previous;
+    }
+
+    @Override
+    protected void storeBatch(Map<ContentId, byte[]> batch) {
+        Map<ContentId, byte[]> outerBatch = new LinkedHashMap<ContentId, byte[]>();
+        for (Map.Entry<ContentId, byte[]> e : batch.entrySet())
+            outerBatch.put(outer(e.getKey()), e.getValue());
+        delegate.putBatch(outerBatch);
+        for (Map.Entry<ContentId, byte[]> e : batch.entrySet())
+            cache(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Streams into the delegate; the value is cached when it is first read.
+     */
+    @Override
+    public ContentId put(InputStream in) throws IOException {
+        ContentId id = inner(delegate.put(in));
+        replicateStream(id);
+        return id;
+    }
+
+    @Override
+    public void putAll(Map<? extends ContentId, ? extends byte[]> m) {
+        for (Map.Entry<? extends ContentId, ? extends byte[]> e : m.entrySet())
+            put(inner(e.getKey()), e.getValue());
+    }
+
+    @Override
+    public byte[] remove(Object key) {
+        ContentId id = inner(key);
+        synchronized (this) {
+            byte[] value = window.remove(id);
+            if (value == null)
+                value = main.remove(id);
+            if (value != null)
+                bytes -= value.length;
+        }
+        return delegate.remove(outer(key));
+    }
+
+    @Override
+    public void clear() {
+        invalidateAll();
+        delegate.clear();
+    }
+
+    /**
+     * Empties the cache without touching the delegate.
+     */
+    public synchronized void invalidateAll() {
+        window.clear();
+        main.clear();
+        bytes = 0;
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return delegate.containsValue(value);
+    }
+
+    @Override
+    public Collection<byte[]> values() {
+        return delegate.values();
+    }
+
+    /**
+     * The delegate's keys, as ids of this repo.
+     */
+    @Override
+    public Set<ContentId> keySet() {
+        return new AbstractSet<ContentId>() {
+            @Override
+            public Iterator<ContentId> iterator() {
+                final Iterator<ContentId> it = delegate.keySet().iterator();
+                return new Iterator<ContentId>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public ContentId next() { return inner(it.next()); }
+                    public void remove() { it.remove(); }
+                };
+            }
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof ContentId && RepoCache.this.containsKey(o);
+            }
+            @Override
+            public int size() {
+                return delegate.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<ContentId, byte[]>> entrySet() {
+        return new AbstractSet<Map.Entry<ContentId, byte[]>>() {
+            @Override
+            public Iterator<Map.Entry<ContentId, byte[]>> iterator() {
+                final Iterator<Map.Entry<ContentId, byte[]>> it = delegate.entrySet().iterator();
+                return new Iterator<Map.Entry<ContentId, byte[]>>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public Map.Entry<ContentId, byte[]> next() {
+                        Map.Entry<ContentId, byte[]> e = it.next();
+                        return new AbstractMap.SimpleImmutableEntry<ContentId, byte[]>(inner(e.getKey()), e.getValue());
+                    }
+                    public void remove() { it.remove(); }
+                };
+            }
+            @Override
+            public int size() {
+                return delegate.size();
+            }
+        };
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    /**
+     * Values dropped to make room, including new values W_TINY_LFU declined to keep.
+     */
+    public long getEvictions() { return evictions.get(); }
+
+    public synchronized int getCachedEntries() {
+        return window.size() + main.size();
+    }
+
+    public synchronized long getCachedBytes() {
+        return bytes;
+    }
+
+    /**
+     * Approximate recent access counts: a count-min sketch of four rows of
+     * small saturating counters, all halved once enough accesses have been
+     * counted so that old popularity fades.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+        private final byte[][] rows;
+        private final int mask;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries * 8) - 1) << 1;
+            rows = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * maxEntries;
+        }
+
+        private int index(Object key, int row) {
+            int h = key.hashCode() * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(Object key) {
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(key, row);
+                if (rows[row][i] < MAX_COUNT)
+                    rows[row][i]++;
+            }
+            if (++additions >= sampleSize) {
+                for (byte[] r : rows)
+                    for (int i = 0; i < r.length; i++)
+                        r[i] >>= 1;
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int min = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++)
+                min = Math.min(min, rows[row][index(key, row)]);
+            return min;
+        }
+    }
+}
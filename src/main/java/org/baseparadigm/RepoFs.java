@@ -1,58 +1,267 @@
 package org.baseparadigm;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
 
-public class RepoFs extends Repo {
+/**
+ * A repo storing each value in its own file, named by the Namer and grouped
+ * in directories by the first three characters of the name.
+ *
+ * A Bloom filter over the stored ids answers most lookups of missing keys
+ * without touching the file system. It is saved by close() and deleted
+ * again when it is loaded, so after a crash it is rebuilt by listing the
+ * storage directory, which needs a Namer that can reverse names.
+ */
+public class RepoFs extends Repo implements Closeable {
+    public static final long DEFAULT_EXPECTED_ENTRIES = 1 << 20;
+    public static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+    static final String FILTER_FILE = "bloom.dat";
     public File storageDir;
     private Namer namer;
+    /**
+     * null if the namer can't reverse names, so the filter can't be rebuilt.
+     */
+    private final BloomFilter filter;
     public File getStorageDir() {return storageDir;}
     
     public RepoFs(File storageDir, Namer n) {
-        super();
+        this(storageDir, n, IdScheme.SHA512);
+    }
+    
+    public RepoFs(File storageDir, Namer n, IdScheme idScheme) {
+        this(storageDir, n, idScheme, DEFAULT_EXPECTED_ENTRIES);
+    }
+    
+    /**
+     * @param expectedEntries
+     * How many values the Bloom filter is sized for when it has to be built;
+     * past that it lets more misses through to the file system.
+     */
+    public RepoFs(File storageDir, Namer n, IdScheme idScheme, long expectedEntries) {
+        super(idScheme);
         this.namer = n;
         if (! storageDir.mkdirs())
             if (! storageDir.exists())
                 throw new RuntimeException("can't use "+ storageDir.getAbsolutePath());
         this.storageDir = storageDir;
+        this.filter = loadFilter(expectedEntries);
+    }
+    
+    private BloomFilter loadFilter(long expectedEntries) {
+        File saved = new File(storageDir, FILTER_FILE);
+        if (saved.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(saved)));
+                try {
+                    return BloomFilter.readFrom(in);
+                } finally {
+                    in.close();
+                    // only a clean close writes it back
+                    saved.delete();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // rebuild it instead
+            }
+        }
+        BloomFilter built = new BloomFilter(expectedEntries, FILTER_FALSE_POSITIVE_RATE);
+        File[] dirs = storageDir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isDirectory();
+            }
+        });
+        try {
+            if (dirs != null)
+                Repo.ingestPool.invoke(new ScanTask(built, dirs, 0, dirs.length));
+        } catch (UnsupportedOperationException e) {
+            // the namer can't reverse the names, or not all of them, and a
+            // filter missing a stored value would hide it
+            return null;
+        }
+        return built;
+    }
+    
+    /**
+     * Adds the ids of the files in dirs[from, to) to the filter, splitting
+     * the directories across the pool.
+     *
+     * @throws UnsupportedOperationException
+     * if a file name can't be mapped back to an id.
+     */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BloomFilter filter;
+        private final File[] dirs;
+        private final int from, to;
+        
+        ScanTask(BloomFilter filter, File[] dirs, int from, int to) {
+            this.filter = filter;
+            this.dirs = dirs;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    String[] names = dirs[i].list();
+                    if (names == null)
+                        continue;
+                    for (String name : names) {
+                        byte[] id;
+                        try {
+                            id = namer.reverse(name);
+                        } catch (IllegalArgumentException notAnId) {
+                            id = null;
+                        }
+                        if (id == null || id.length != keyLength)
+                            throw new UnsupportedOperationException(name +" in "+ dirs[i] +" can't be mapped back to an id");
+                        filter.add(ContentId.wrap(RepoFs.this, id));
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScanTask(filter, dirs, from, mid), new ScanTask(filter, dirs, mid, to));
+        }
+    }
+    
+    /**
+     * Saves the Bloom filter so the next RepoFs on this directory needn't
+     * rebuild it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (filter == null)
+            return;
+        File temp = new File(storageDir, FILTER_FILE +".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            filter.writeTo(out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), new File(storageDir, FILTER_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE);
     }
     
     public File fileName(ContentId key) {
         String filename = namer.name(key.toByteArray());
         assert filename.length() >= 3;
         File pdir = new File(storageDir, filename.substring(0, 3));
-        pdir.mkdirs();
         return new File(pdir, filename);
     }
     
+    /**
+     * fileName, creating its directory.
+     */
+    private File newFileName(ContentId key) {
+        File f = fileName(key);
+        f.getParentFile().mkdirs();
+        return f;
+    }
+    
+    /**
+     * false if key is surely not stored; true if it might be.
+     */
+    private boolean mightContain(ContentId key) {
+        return filter == null || filter.mightContain(key);
+    }
+    
     @Override
-    public byte[] put(final ContentId key, final byte[] value) {
-        File dest = fileName(key);
-        BufferedOutputStream bos = null;
+    public boolean containsKey(Object key) {
+        ContentId cid = (ContentId) key;
+        return mightContain(cid) && fileName(cid).exists();
+    }
+    
+    /**
+     * Writes a temporary file and renames it into place, like
+     * put(InputStream), so a failed or interrupted write never leaves a
+     * partial file behind for the next put to skip over.
+     */
+    @Override
+    protected byte[] store(final ContentId key, final byte[] value) {
+        File dest = newFileName(key);
+        File temp = null;
         try {
-            bos = new BufferedOutputStream(new FileOutputStream(dest));
-            bos.write(value);
-            bos.flush();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            temp = File.createTempFile("put-", ".tmp", storageDir);
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(value);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException("can't store "+ key +" in "+ dest.getAbsolutePath(), e);
         } finally {
-            if (bos != null)
-                try {
-                    bos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            // already gone unless something failed
+            if (temp != null)
+                temp.delete();
         }
+        if (filter != null)
+            filter.add(key);
         return null;
     }
 
+    /**
+     * Hashes the stream while copying it to a temporary file, then renames
+     * the file into place, so the content is never all in memory and a
+     * reader never sees a partly written file. If the content was already
+     * stored the temporary file is just deleted.
+     */
+    @Override
+    public ContentId put(InputStream in) throws IOException {
+        MessageDigest digest = getIdScheme().newDigest();
+        File temp = File.createTempFile("put-", ".tmp", storageDir);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                Util.copy(new DigestInputStream(in, digest), out);
+            } finally {
+                out.close();
+            }
+            ContentId id = idFor(digest);
+            if (isStored(id)) {
+                countDeduplicated();
+                return id;
+            }
+            Files.move(temp.toPath(), newFileName(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (filter != null)
+                filter.add(id);
+            countStored();
+            replicateStream(id);
+            return id;
+        } finally {
+            // already gone unless something failed
+            temp.delete();
+        }
+    }
+
     @Override
     public byte[] get(Object key) {
         ContentId cid;
@@ -61,26 +270,123 @@ public class RepoFs extends Repo {
         else
             cid = (ContentId)key; // class cast exceptions here are good
         assert cid.repo == this;
-        InputStream is = null;
+        if (! mightContain(cid))
+            return null;
+        return read(fileName(cid));
+    }
+    
+    private static byte[] read(File f) {
         try {
-            is = new FileInputStream(fileName(cid));
-            return Util.drain(is);
-        } catch (FileNotFoundException fnfe) {
+            // sized from the file rather than grown while reading
+            return Files.readAllBytes(f.toPath());
+        } catch (NoSuchFileException e) {
             // per the contract for a Map when there is no mapping for the key
             return null;
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (is != null)
-                    is.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
         return null;
     }
     
+    /**
+     * Reads the files in parallel on Repo.ingestPool. They are sorted by
+     * path first and each task reads a run of neighbours, so a directory's
+     * files are read together. Keys the Bloom filter rules out are never
+     * looked for.
+     */
+    @Override
+    public Map<ContentId, byte[]> getAll(Iterable<ContentId> keys) {
+        Set<ContentId> wanted = new LinkedHashSet<ContentId>();
+        for (ContentId k : keys) {
+            assert k.repo == this;
+            if (mightContain(k))
+                wanted.add(k);
+        }
+        Read[] reads = new Read[wanted.size()];
+        int i = 0;
+        for (ContentId k : wanted)
+            reads[i++] = new Read(k, fileName(k));
+        Read[] byPath = reads.clone();
+        Arrays.sort(byPath, new Comparator<Read>() {
+            public int compare(Read a, Read b) {
+                return a.file.compareTo(b.file);
+            }
+        });
+        Repo.ingestPool.invoke(new ReadTask(byPath, 0, byPath.length));
+        Map<ContentId, byte[]> ret = new LinkedHashMap<ContentId, byte[]>();
+        for (Read r : reads)
+            if (r.value != null)
+                ret.put(r.key, r.value);
+        return ret;
+    }
+    
+    private static class Read {
+        final ContentId key;
+        final File file;
+        byte[] value;
+        Read(ContentId key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+    }
+    
+    /**
+     * Reads reads[from, to), splitting the range across the pool.
+     */
+    private static class ReadTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 8;
+        private final Read[] reads;
+        private final int from, to;
+        
+        ReadTask(Read[] reads, int from, int to) {
+            this.reads = reads;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++)
+                    reads[i].value = read(reads[i].file);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ReadTask(reads, from, mid), new ReadTask(reads, mid, to));
+        }
+    }
+
+    @Override
+    public InputStream openStream(ContentId key) throws IOException {
+        assert key.repo == this;
+        if (! mightContain(key))
+            return null;
+        try {
+            return new FileInputStream(fileName(key));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A read only channel over the file for key, for positional reads,
+     * mapping, or transferTo without copying through the heap.
+     *
+     * @return
+     * null if there is no value for the key
+     */
+    public FileChannel openChannel(ContentId key) throws IOException {
+        assert key.repo == this;
+        if (! mightContain(key))
+            return null;
+        try {
+            return FileChannel.open(fileName(key).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+    
     /**
      * A repo storing data in files needs to be told what to name the files.
      */
@@ -88,4 +394,32 @@ public class RepoFs extends Repo {
         public String name(byte[] cid);
         public byte[] reverse(String cid);
     }
+    
+    /**
+     * Names files by the lowercase hex of the id, two digits per byte.
+     */
+    public static final Namer HEX_NAMER = new Namer() {
+        public String name(byte[] cid) {
+            StringBuilder sb = new StringBuilder(cid.length * 2);
+            for (byte b : cid) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        }
+        
+        public byte[] reverse(String name) {
+            if (name.length() % 2 != 0)
+                throw new IllegalArgumentException(name +" is not an even number of hex digits");
+            byte[] ret = new byte[name.length() / 2];
+            for (int i = 0; i < ret.length; i++) {
+                int hi = Character.digit(name.charAt(2 * i), 16);
+                int lo = Character.digit(name.charAt(2 * i + 1), 16);
+                if (hi < 0 || lo < 0)
+                    throw new IllegalArgumentException(name +" is not hex");
+                ret[i] = (byte) (hi << 4 | lo);
+            }
+            return ret;
+        }
+    };
 }
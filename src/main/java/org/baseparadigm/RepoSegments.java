@@ -0,0 +1,342 @@
+package org.baseparadigm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A repo that appends values into a few large memory mapped segment files
+ * instead of writing one file per value the way RepoFs does.
+ *
+ * Each record in a segment is laid out as
+ * [int value length + 1][id][value bytes]
+ * and the length is written last, so after a process crash a record whose
+ * length is still zero was never completely appended. After a power loss
+ * the kernel may have written the mapped pages back in any order, so
+ * recovery also checks each value against its id, and stops at the first
+ * record that doesn't match. The offset index is kept in memory and
+ * rebuilt on construction by scanning the segments.
+ *
+ * Values are never removed or rewritten; putting a value that is already
+ * stored is a no-op.
+ */
+public class RepoSegments extends Repo implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 256 << 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final int HEADER_LENGTH = 4;
+
+    public final File storageDir;
+    public File getStorageDir() {return storageDir;}
+    private final int segmentSize;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+    /**
+     * ContentId to (segment number << 32 | record offset).
+     */
+    private final Map<ContentId, Long> index = new ConcurrentHashMap<ContentId, Long>();
+    // guarded by this
+    private MappedByteBuffer active;
+    private int writePosition;
+
+    public RepoSegments(File storageDir) {
+        this(storageDir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize
+     * The size new segment files are created with; no value bigger than
+     * this, less the record header and key length, can be stored.
+     */
+    public RepoSegments(File storageDir, int segmentSize) {
+        this(storageDir, segmentSize, IdScheme.SHA512);
+    }
+
+    /**
+     * @param idScheme
+     * Must be the scheme the segments were written with, if there are any.
+     */
+    public RepoSegments(File storageDir, int segmentSize, IdScheme idScheme) {
+        super(idScheme);
+        if (! storageDir.mkdirs())
+            if (! storageDir.exists())
+                throw new RuntimeException("can't use "+ storageDir.getAbsolutePath());
+        this.storageDir = storageDir;
+        this.segmentSize = segmentSize;
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException("can't recover segments in "+ storageDir.getAbsolutePath(), e);
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(storageDir, String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(File f, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps every existing segment and indexes the complete records in it.
+     * Appending resumes after the last complete record of the last segment.
+     */
+    private synchronized void recover() throws IOException {
+        String[] names = storageDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (int i = 0; i < names.length; i++) {
+            File f = segmentFile(i);
+            if (! f.getName().equals(names[i]))
+                throw new IOException("segment "+ f.getName() +" is missing");
+            MappedByteBuffer segment = map(f, Math.max(f.length(), HEADER_LENGTH));
+            segments.add(segment);
+            active = segment;
+            writePosition = scan(i, segment);
+        }
+        if (active == null)
+            roll();
+    }
+
+    /**
+     * @return
+     * The offset just past the last complete record whose value hashes to
+     * its id.
+     */
+    private int scan(int segmentNumber, ByteBuffer segment) {
+        MessageDigest digest = getIdScheme().newDigest();
+        int pos = 0;
+        while (pos + HEADER_LENGTH + keyLength <= segment.capacity()) {
+            int length = segment.getInt(pos) - 1;
+            int end = pos + HEADER_LENGTH + keyLength + length;
+            if (length < 0 || end > segment.capacity() || end < 0)
+                break;
+            byte[] id = new byte[keyLength];
+            ByteBuffer dup = segment.duplicate();
+            dup.position(pos + HEADER_LENGTH);
+            dup.get(id);
+            ContentId key = ContentId.wrap(this, id);
+            dup.limit(end);
+            digest.update(dup);
+            if (! key.equals(idFor(digest)))
+                break; // torn by a power loss; appending resumes over it
+            index.put(key, location(segmentNumber, pos));
+            pos = end;
+        }
+        return pos;
+    }
+
+    private static long location(int segmentNumber, int offset) {
+        return ((long) segmentNumber << 32) | (offset & 0xffffffffL);
+    }
+
+    private void roll() throws IOException {
+        active = map(segmentFile(segments.size()), segmentSize);
+        segments.add(active);
+        writePosition = 0;
+    }
+
+    @Override
+    protected byte[] store(final ContentId key, final byte[] value) {
+        if (index.containsKey(key))
+            return value;
+        append(key, value);
+        return null;
+    }
+
+    /**
+     * Appends the whole batch under one lock.
+     */
+    @Override
+    protected synchronized void storeBatch(Map<ContentId, byte[]> batch) {
+        for (Map.Entry<ContentId, byte[]> e : batch.entrySet())
+            append(e.getKey(), e.getValue());
+    }
+
+    private synchronized void append(ContentId key, byte[] value) {
+        if (index.containsKey(key))
+            return;
+        int recordLength = HEADER_LENGTH + keyLength + value.length;
+        if (recordLength > segmentSize || recordLength < 0)
+            throw new IllegalArgumentException("a value of "+ value.length
+                    +" bytes does not fit in a segment of "+ segmentSize +" bytes");
+        try {
+            if (writePosition + recordLength > active.capacity())
+                roll();
+        } catch (IOException e) {
+            throw new RuntimeException("can't create a new segment in "+ storageDir.getAbsolutePath(), e);
+        }
+        ByteBuffer dup = active.duplicate();
+        dup.position(writePosition + HEADER_LENGTH);
+        key.writeTo(dup);
+        dup.put(value);
+        // the length goes in last so that after a process crash recovery
+        // never sees a partial record; scan checks the rest against the id
+        active.putInt(writePosition, value.length + 1);
+        index.put(key, location(segments.size() - 1, writePosition));
+        writePosition += recordLength;
+    }
+
+    /**
+     * A read only view of the stored value directly in the mapped segment;
+     * nothing is copied.
+     *
+     * @return
+     * null if there is no value for the key
+     */
+    @Override
+    public ByteBuffer getBuffer(ContentId key) {
+        assert key.repo == this;
+        Long loc = index.get(key);
+        if (loc == null)
+            return null;
+        ByteBuffer segment = segments.get((int) (loc >>> 32)).duplicate();
+        int offset = (int) loc.longValue();
+        int length = segment.getInt(offset) - 1;
+        int start = offset + HEADER_LENGTH + keyLength;
+        segment.limit(start + length).position(start);
+        return segment.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * A copy of the stored value, per the Map contract; use getBuffer to avoid the copy.
+     */
+    @Override
+    public byte[] get(Object key) {
+        ByteBuffer buf = getBuffer((ContentId) key); // class cast exceptions here are good
+        if (buf == null)
+            return null;
+        byte[] ret = new byte[buf.remaining()];
+        buf.get(ret);
+        return ret;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public Set<ContentId> keySet() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Entries read through get as they are iterated, so each value is a copy.
+     */
+    @Override
+    public Set<Map.Entry<ContentId, byte[]>> entrySet() {
+        return new AbstractSet<Map.Entry<ContentId, byte[]>>() {
+            @Override
+            public Iterator<Map.Entry<ContentId, byte[]>> iterator() {
+                final Iterator<ContentId> it = index.keySet().iterator();
+                return new Iterator<Map.Entry<ContentId, byte[]>>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public Map.Entry<ContentId, byte[]> next() {
+                        ContentId key = it.next();
+                        return new AbstractMap.SimpleImmutableEntry<ContentId, byte[]>(key, get(key));
+                    }
+                    public void remove() { throw new UnsupportedOperationException("segments are append only"); }
+                };
+            }
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    /**
+     * Values read through get as they are iterated, so each one is a copy.
+     */
+    @Override
+    public Collection<byte[]> values() {
+        return new AbstractCollection<byte[]>() {
+            @Override
+            public Iterator<byte[]> iterator() {
+                final Iterator<ContentId> it = index.keySet().iterator();
+                return new Iterator<byte[]>() {
+                    public boolean hasNext() { return it.hasNext(); }
+                    public byte[] next() { return get(it.next()); }
+                    public void remove() { throw new UnsupportedOperationException("segments are append only"); }
+                };
+            }
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    /**
+     * Looks the value up by its id rather than comparing it with every
+     * stored value.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        return value instanceof byte[] && containsKey(idFor((byte[]) value));
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public byte[] remove(Object key) {
+        throw new UnsupportedOperationException("segments are append only");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("segments are append only");
+    }
+
+    /**
+     * Forces appended records out to the segment files.
+     */
+    public synchronized void flush() {
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+    }
+
+    /**
+     * Flushes; the mappings are released when this instance is collected.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+}
@@ -1,15 +1,14 @@
 package org.baseparadigm;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -29,19 +28,63 @@ public class SetDatum implements SortedSet<ContentId>, ToByteArray {
     public SortedSet<ContentId> backingSet = null;
     public Repo repo = null;
     public boolean isMutable = false;
+    /**
+     * Once immutable a set always serializes the same, so its bytes and id
+     * are only computed once.
+     */
+    private byte[] serialized = null;
+    private ContentId id = null;
     
     /**
      * Constructs an immutable representation of the set given by the datumId.
+     * The serialized set is not parsed; lookups search it directly and
+     * members are only turned into ContentIds as they are asked for.
      * @param repo
      * @param datumId
      * an id that should point to a set in the given repo.
      */
-    public SetDatum(Repo repo, BigInteger datumId) {
+    public SetDatum(Repo repo, ContentId datumId) {
+        this(repo, datumId, repo.getBuffer(datumId));
+    }
+    
+    private SetDatum(Repo repo, ByteBuffer serialized) {
         this.repo = repo;
-        this.backingSet = Collections.unmodifiableSortedSet(toSet(repo, datumId));
+        this.backingSet = new PackedIdSet(repo, serialized);
         isMutable = false;
     }
     
+    private SetDatum(Repo repo, ContentId datumId, ByteBuffer serialized) {
+        this(repo, serialized);
+        this.id = datumId;
+    }
+    
+    /**
+     * An immutable SetDatum reading straight from a serialized set, as
+     * written by toByteArray, without copying or parsing it.
+     */
+    public static SetDatum view(Repo repo, ByteBuffer serialized) {
+        return new SetDatum(repo, serialized.slice());
+    }
+    
+    /**
+     * view(repo, ByteBuffer.wrap(serialized))
+     */
+    public static SetDatum view(Repo repo, byte[] serialized) {
+        return new SetDatum(repo, ByteBuffer.wrap(serialized));
+    }
+    
+    /**
+     * An immutable SetDatum reading a set written by toCompressedByteArray,
+     * decoding a block at a time as it is searched or iterated. Its id is
+     * still that of the canonical form.
+     */
+    public static SetDatum viewCompressed(Repo repo, ByteBuffer encoded) {
+        SetDatum ret = new SetDatum(repo);
+        ret.backingSet = new CompressedIdSet(repo, encoded.slice());
+        ret.isMutable = false;
+        return ret;
+    }
+    
     /**
      * Inserts the given URIs into the given repo and constructs a Set of ids for them; immutable.
      * @param repo
@@ -139,6 +182,7 @@ public class SetDatum implements SortedSet<ContentId>, ToByteArray {
 
     /**
      * The datumId must reference a set of references.
+     * Unlike new SetDatum(repo, datumId), this parses every member up front.
      * 
      * @param repo
      * Where to look up the datumId.
@@ -146,28 +190,51 @@ public class SetDatum implements SortedSet<ContentId>, ToByteArray {
      * @param datumId
      * The id for the content of the set.
      */
-    public static SortedSet<ContentId> toSet(Repo repo, BigInteger datumId) {
+    public static SortedSet<ContentId> toSet(Repo repo, ContentId datumId) {
+        return toSet(repo, repo.get(datumId));
+    }
+    
+    private static SortedSet<ContentId> toSet(Repo repo, byte[] ids) {
         SortedSet<ContentId> toFill = new TreeSet<ContentId>();
-        InputStream ids = new ByteArrayInputStream(repo.get(datumId));
-        try {
-            byte[] val = new byte[repo.keyLength()];
-            for(int nbrRead = ids.read(val);
-                    nbrRead == val.length;
-                    nbrRead = ids.read(val)) {
-                toFill.add(new ContentId(repo, val));
-            }
-            assert ids.read() == -1;
-        } catch (IOException ioe) {
-            assert false : "there is something drastically wrong if a ByteArrayInputStream throws an IOException";
-        }
+        int keyLength = repo.keyLength();
+        assert ids.length % keyLength == 0;
+        for (int offset = 0; offset + keyLength <= ids.length; offset += keyLength)
+            toFill.add(ContentId.wrap(repo, Arrays.copyOfRange(ids, offset, offset + keyLength)));
         return toFill;
     }
 
+    /**
+     * An immutable SetDatum with every member of the stored set parsed up front.
+     */
+    static SetDatum parse(Repo repo, ContentId datumId) {
+        return parse(repo, repo.get(datumId));
+    }
+
+    /**
+     * parse, given the already read serialized set.
+     */
+    static SetDatum parse(Repo repo, byte[] serialized) {
+        SetDatum ret = new SetDatum(repo);
+        ret.backingSet = Collections.unmodifiableSortedSet(toSet(repo, serialized));
+        ret.isMutable = false;
+        return ret;
+    }
+
     /**
      * Get the data for the content id and create a SetDatum from it.
      */
     public static SetDatum inflate(ContentId cid) {
-        return new SetDatum(toSet(cid.repo, cid));
+        return new SetDatum(cid.repo, cid);
+    }
+
+    /**
+     * The stored values of the members, read together with one getAll.
+     * 
+     * @return
+     * In member order; members with no stored value are left out.
+     */
+    public Map<ContentId, byte[]> getValues() {
+        return repo.getAll(this);
     }
 
     @Override
@@ -236,21 +303,39 @@ public class SetDatum implements SortedSet<ContentId>, ToByteArray {
     }
     @Override
     public byte[] toByteArray() {
+        if (isMutable)
+            return serialize();
+        if (serialized == null)
+            serialized = serialize();
+        return serialized.clone();
+    }
+    
+    /**
+     * A smaller encoding of the set for storing or sending, read back with
+     * viewCompressed. Sorted neighbours are stored as the bytes they don't
+     * share, in blocks that can be decoded on their own. The id is still
+     * defined over toByteArray.
+     */
+    public byte[] toCompressedByteArray() {
+        return CompressedIdSet.encode(toByteArray(), repo.keyLength, CompressedIdSet.DEFAULT_BLOCK_SIZE);
+    }
+    
+    private byte[] serialize() {
+        if (backingSet instanceof PackedIdSet)
+            return ((PackedIdSet) backingSet).toByteArray();
+        if (backingSet instanceof CompressedIdSet)
+            return ((CompressedIdSet) backingSet).toByteArray();
         if (isEmpty())
             return new byte[0];
         int keyLength;
-        if (repo == null) {
-            ContentId containedId = backingSet.iterator().next();
-            if (containedId.repo == null)
-                keyLength = containedId.toByteArray().length;
-            else keyLength = containedId.repo.keyLength;
-        } else keyLength = repo.keyLength;
+        if (repo == null)
+            keyLength = backingSet.iterator().next().length();
+        else keyLength = repo.keyLength;
         byte[] ret = new byte[keyLength *size()];
         int offset = 0;
         for (ContentId i : this) {
-            assert i.repo.keyLength == keyLength;
-            System.arraycopy(i.toByteArray(), 0, ret, offset, keyLength);
-            offset += keyLength;
+            assert i.length() == keyLength;
+            offset = i.writeTo(ret, offset);
         }
         return ret;
     }
@@ -285,11 +370,39 @@ public class SetDatum implements SortedSet<ContentId>, ToByteArray {
         return backingSet.tailSet(start);
     }
 
+    /**
+     * Sets are equal when they have the same members, whatever backs them.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o == this || backingSet.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return backingSet.hashCode();
+    }
+
+    /**
+     * Stores this set in its repo and returns the id; immutable sets only do
+     * that the first time.
+     */
+    public ContentId getId() {
+        if (isMutable)
+            return repo.put(this);
+        if (id == null)
+            id = repo.put(this);
+        return id;
+    }
+
     /**
      * make immutable
      */
     public SetDatum buildFinish() {
-        isMutable  = false;
+        if (isMutable) {
+            backingSet = Collections.unmodifiableSortedSet(backingSet);
+            isMutable  = false;
+        }
         return this;
     }
 
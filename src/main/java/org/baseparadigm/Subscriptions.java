@@ -0,0 +1,541 @@
+package org.baseparadigm;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standing queries on a Graph: every datum newly indexed by the graph is
+ * checked against the registered subscriptions, and matches are handed
+ * to their listeners in batches.
+ *
+ * Graph.add only queues the datum, without ever waiting, once it has let
+ * go of its locks. A dispatcher thread puts the data back in the order
+ * the graph committed them and does the matching. Each subscription made
+ * from a template is filed under its rarest term, so a datum only has to
+ * be checked against the subscriptions filed under one of its own terms.
+ * Subscriptions with no terms, such as those made from just a Pattern,
+ * are checked against every datum. Each subscription then delivers its
+ * matches in order, on the executor, at most batchSize at a time.
+ *
+ * What happens when the graph adds data faster than they can be matched,
+ * or a listener falls behind, is up to the Replicator.Overflow policy,
+ * which the dispatcher applies. With BLOCK it is the dispatcher that
+ * waits for a listener, and data wait to be matched without bound.
+ */
+public class Subscriptions implements Closeable {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Receives the matches of one subscription, one batch at a time and
+     * never concurrently, in the order the graph committed them.
+     */
+    public static interface Listener {
+        public void deliver(List<GraphDatum> matches);
+    }
+
+    public final Graph graph;
+    public final Replicator.Overflow overflow;
+    private final int capacity;
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final BlockingQueue<Published> published = new LinkedBlockingQueue<Published>();
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+    /**
+     * The first ordinal committed after the graph was attached.
+     */
+    private volatile int start = 0;
+
+    /**
+     * Template subscriptions by the field and keyword they are filed under.
+     */
+    private final Map<SubjectPredicateObject, Map<ContentId, List<Subscription>>> filed =
+            new EnumMap<SubjectPredicateObject, Map<ContentId, List<Subscription>>>(SubjectPredicateObject.class);
+    private final List<Subscription> unfiled = new CopyOnWriteArrayList<Subscription>();
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong evaluated = new AtomicLong();
+    /**
+     * Notified whenever data are dispatched or delivered; flush watches it.
+     */
+    private final Object progress = new Object();
+
+    /**
+     * Listeners run on RepoAsync.defaultExecutor().
+     */
+    public Subscriptions(Graph graph) {
+        this(graph, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, Replicator.Overflow.BLOCK, RepoAsync.defaultExecutor());
+    }
+
+    /**
+     * @param capacity
+     * How many data may wait to be matched, unless overflow is BLOCK, and
+     * how many matches may wait for each listener.
+     *
+     * @param batchSize
+     * The most matches handed to a listener at once.
+     *
+     * @param executor
+     * Runs the listeners; it is the caller's to shut down.
+     */
+    public Subscriptions(Graph graph, int capacity, int batchSize, Replicator.Overflow overflow, ExecutorService executor) {
+        if (capacity < 1 || batchSize < 1)
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        this.graph = graph;
+        this.overflow = overflow;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            filed.put(spo, new ConcurrentHashMap<ContentId, List<Subscription>>());
+        this.dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "subscriptions-"+ threadCount.incrementAndGet());
+        dispatcher.setDaemon(true);
+        start = graph.attach(this);
+        dispatcher.start();
+    }
+
+    /**
+     * Matches data that contain at least everything template does, just
+     * like Graph.query(template).
+     */
+    public Subscription subscribe(GraphDatum template, Listener listener) {
+        return subscribe(template, null, listener);
+    }
+
+    /**
+     * Matches data that pattern partially matches.
+     */
+    public Subscription subscribe(Pattern pattern, Listener listener) {
+        return subscribe(null, pattern, listener);
+    }
+
+    /**
+     * Matches data that contain everything template does and that pattern
+     * partially matches; the template narrows down which data the pattern
+     * is tried on.
+     *
+     * @param template
+     * null for no constraint.
+     *
+     * @param pattern
+     * null for no constraint.
+     */
+    public Subscription subscribe(GraphDatum template, Pattern pattern, Listener listener) {
+        if (closed)
+            throw new IllegalStateException("subscriptions are closed");
+        Subscription s = new Subscription(template, pattern, listener);
+        SubjectPredicateObject field = null;
+        ContentId rarest = null;
+        int rarestCount = Integer.MAX_VALUE;
+        if (template != null)
+            for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+                Set<ContentId> values = template.get(spo);
+                if (values == null)
+                    continue;
+                PostingIndex oneIdx = graph.idx.get(spo);
+                for (ContentId keyword : values) {
+                    int count = oneIdx.cardinality(keyword);
+                    if (count < rarestCount) {
+                        field = spo;
+                        rarest = keyword;
+                        rarestCount = count;
+                    }
+                }
+            }
+        s.field = field;
+        s.keyword = rarest;
+        if (rarest == null) {
+            unfiled.add(s);
+        } else {
+            Map<ContentId, List<Subscription>> byKeyword = filed.get(field);
+            synchronized (byKeyword) {
+                List<Subscription> list = byKeyword.get(rarest);
+                if (list == null) {
+                    list = new CopyOnWriteArrayList<Subscription>();
+                    byKeyword.put(rarest, list);
+                }
+                list.add(s);
+            }
+        }
+        return s;
+    }
+
+    private void unsubscribe(Subscription s) {
+        if (s.keyword == null) {
+            unfiled.remove(s);
+            return;
+        }
+        Map<ContentId, List<Subscription>> byKeyword = filed.get(s.field);
+        synchronized (byKeyword) {
+            List<Subscription> list = byKeyword.get(s.keyword);
+            if (list != null) {
+                list.remove(s);
+                if (list.isEmpty())
+                    byKeyword.remove(s.keyword);
+            }
+        }
+    }
+
+    /**
+     * A datum as the graph committed it; datum is null for one that is only
+     * there to keep the ordinals contiguous.
+     */
+    private static class Published {
+        final int ordinal;
+        final GraphDatum datum;
+        Published(int ordinal, GraphDatum datum) {
+            this.ordinal = ordinal;
+            this.datum = datum;
+        }
+    }
+
+    private static final Comparator<Published> byOrdinal = new Comparator<Published>() {
+        public int compare(Published a, Published b) {
+            return Integer.compare(a.ordinal, b.ordinal);
+        }
+    };
+
+    /**
+     * Queues a newly committed datum for matching; called by the graph, in
+     * any order, and never blocks.
+     */
+    void publish(int ordinal, GraphDatum datum) {
+        if (closed || ordinal < start)
+            return;
+        if (datum != null)
+            enqueued.incrementAndGet();
+        published.add(new Published(ordinal, datum));
+    }
+
+    /**
+     * Queues item according to the Overflow policy.
+     *
+     * @return
+     * -1 if item was dropped, otherwise how many older items were dropped
+     * to make room for it.
+     */
+    private int offer(BlockingQueue<GraphDatum> queue, GraphDatum item) {
+        switch (overflow) {
+        case BLOCK:
+            try {
+                queue.put(item);
+                return 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        case DROP_NEWEST:
+            return queue.offer(item) ? 0 : -1;
+        default:
+            int evicted = 0;
+            while (! queue.offer(item))
+                if (queue.poll() != null)
+                    evicted++;
+            return evicted;
+        }
+    }
+
+    private void dispatch() {
+        // published ahead of a lower ordinal that hasn't arrived yet
+        PriorityQueue<Published> early = new PriorityQueue<Published>(16, byOrdinal);
+        ArrayDeque<GraphDatum> ready = new ArrayDeque<GraphDatum>();
+        List<Published> arrived = new ArrayList<Published>();
+        int next = start;
+        while (! closed || ! published.isEmpty() || ! ready.isEmpty()) {
+            if (ready.isEmpty()) {
+                try {
+                    Published first = published.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    arrived.add(first);
+                } catch (InterruptedException e) {
+                    continue; // the loop condition decides when to stop
+                }
+            }
+            published.drainTo(arrived);
+            early.addAll(arrived);
+            arrived.clear();
+            int settled = 0;
+            while (! early.isEmpty() && early.peek().ordinal <= next) {
+                Published p = early.poll();
+                if (p.ordinal < next) {
+                    // committed before the graph was attached
+                    if (p.datum != null)
+                        settled++;
+                    continue;
+                }
+                next++;
+                if (p.datum != null)
+                    ready.add(p.datum);
+            }
+            settled += trim(ready);
+            for (int i = 0; i < batchSize && ! ready.isEmpty(); i++, settled++)
+                match(ready.poll());
+            dispatched.addAndGet(settled);
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+        // the graph let go before publishing the ordinals these wait for
+        for (Published p : early)
+            if (p.datum != null) {
+                dropped.incrementAndGet();
+                dispatched.incrementAndGet();
+            }
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Drops what doesn't fit in capacity according to the Overflow policy.
+     *
+     * @return
+     * How many data were dropped.
+     */
+    private int trim(ArrayDeque<GraphDatum> ready) {
+        int excess = ready.size() - capacity;
+        if (overflow == Replicator.Overflow.BLOCK || excess <= 0)
+            return 0;
+        for (int i = 0; i < excess; i++) {
+            if (overflow == Replicator.Overflow.DROP_NEWEST)
+                ready.pollLast();
+            else
+                ready.pollFirst();
+        }
+        dropped.addAndGet(excess);
+        return excess;
+    }
+
+    private void match(GraphDatum datum) {
+        Set<Subscription> tried = Collections.newSetFromMap(new IdentityHashMap<Subscription, Boolean>());
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+            Map<ContentId, List<Subscription>> byKeyword = filed.get(spo);
+            if (byKeyword.isEmpty())
+                continue;
+            Set<ContentId> values = datum.get(spo);
+            if (values == null)
+                continue;
+            for (ContentId keyword : values) {
+                List<Subscription> candidates = byKeyword.get(keyword);
+                if (candidates != null)
+                    for (Subscription s : candidates)
+                        if (tried.add(s))
+                            s.tryMatch(datum);
+            }
+        }
+        for (Subscription s : unfiled)
+            s.tryMatch(datum);
+    }
+
+    /**
+     * Waits until every datum published before this call has been matched
+     * and its matches delivered or dropped.
+     *
+     * @return
+     * false if the timeout elapsed first.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long target = enqueued.get();
+        synchronized (progress) {
+            while (dispatched.get() < target || ! allDelivered()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(progress, remaining);
+            }
+        }
+        return true;
+    }
+
+    private boolean allDelivered() {
+        for (Subscription s : unfiled)
+            if (s.getLag() > 0)
+                return false;
+        for (Map<ContentId, List<Subscription>> byKeyword : filed.values())
+            for (List<Subscription> list : byKeyword.values())
+                for (Subscription s : list)
+                    if (s.getLag() > 0)
+                        return false;
+        return true;
+    }
+
+    /**
+     * Stops matching once the queued data are, delivers what is waiting,
+     * and hands the graph back.
+     */
+    @Override
+    public void close() {
+        graph.detach(this);
+        closed = true;
+        boolean interrupted = false;
+        while (dispatcher.isAlive()) {
+            try {
+                dispatcher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Data published to be matched.
+     */
+    public long getEnqueued() { return enqueued.get(); }
+    /**
+     * Data the Overflow policy turned away before they were matched.
+     */
+    public long getDropped() { return dropped.get(); }
+    /**
+     * How many times a datum was checked against a subscription; without
+     * filing, this would be every datum times every subscription.
+     */
+    public long getEvaluated() { return evaluated.get(); }
+
+    /**
+     * One standing query; cancel it to stop its deliveries.
+     */
+    public class Subscription {
+        public final GraphDatum template;
+        public final Pattern pattern;
+        public final Listener listener;
+        // where it is filed; keyword is null when it isn't
+        private SubjectPredicateObject field;
+        private ContentId keyword;
+        private final BlockingQueue<GraphDatum> matches = new ArrayBlockingQueue<GraphDatum>(capacity);
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled = false;
+        private final AtomicLong matched = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong droppedMatches = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private volatile RuntimeException lastFailure = null;
+
+        Subscription(GraphDatum template, Pattern pattern, Listener listener) {
+            this.template = template;
+            this.pattern = pattern;
+            this.listener = listener;
+        }
+
+        void tryMatch(GraphDatum datum) {
+            if (cancelled)
+                return;
+            evaluated.incrementAndGet();
+            if (template != null && ! datum.isSupersetOf(template))
+                return;
+            if (pattern != null && ! pattern.isPartialMatch(datum))
+                return;
+            matched.incrementAndGet();
+            int evicted = offer(matches, datum);
+            droppedMatches.addAndGet(evicted < 0 ? 1 : evicted);
+            // so a full queue always has a delivery under way to drain it
+            schedule();
+        }
+
+        /**
+         * Has the executor deliver, unless it already is.
+         */
+        void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(delivery);
+        }
+
+        private final Runnable delivery = new Runnable() {
+            public void run() {
+                deliverAll();
+            }
+        };
+
+        /**
+         * Delivers batches until there are no more matches waiting.
+         */
+        private void deliverAll() {
+            List<GraphDatum> batch = new ArrayList<GraphDatum>(batchSize);
+            while (true) {
+                matches.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    scheduled.set(false);
+                    // a match may have come in after drainTo but before the flag was cleared
+                    if (matches.isEmpty() || ! scheduled.compareAndSet(false, true))
+                        break;
+                    continue;
+                }
+                if (! cancelled) {
+                    try {
+                        listener.deliver(Collections.unmodifiableList(new ArrayList<GraphDatum>(batch)));
+                    } catch (RuntimeException e) {
+                        lastFailure = e;
+                        failed.addAndGet(batch.size());
+                    }
+                }
+                delivered.addAndGet(batch.size());
+                batch.clear();
+                synchronized (progress) {
+                    progress.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * No more data are matched or delivered; any delivery under way finishes.
+         */
+        public void cancel() {
+            cancelled = true;
+            unsubscribe(this);
+            matches.clear();
+        }
+
+        public long getMatched() { return matched.get(); }
+        /**
+         * Matches handed to the listener, or discarded because it threw or
+         * the subscription was cancelled.
+         */
+        public long getDelivered() { return delivered.get(); }
+        /**
+         * Matches the Overflow policy turned away.
+         */
+        public long getDropped() { return droppedMatches.get(); }
+        /**
+         * Matches in batches the listener threw on; see getLastFailure.
+         */
+        public long getFailed() { return failed.get(); }
+        public RuntimeException getLastFailure() { return lastFailure; }
+
+        /**
+         * Matches waiting to be delivered.
+         */
+        public long getLag() {
+            return cancelled ? 0 : matched.get() - droppedMatches.get() - delivered.get();
+        }
+    }
+}
@@ -3,21 +3,73 @@ package org.baseparadigm;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class Util {
+    static final int BUFFER_SIZE = 64 << 10;
+    
+    /**
+     * Reads the rest of the stream into an array; it is not closed.
+     */
     public static byte[] drain(InputStream is) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int r = 0;
-        for (byte[] buf = new byte[512];
-                (r = is.read(buf)) >= 0;
-                baos.write(buf, 0, r)) {
-            if (r == 0)
-                Thread.yield();
-        }
-        assert is.read() == -1;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(32, is.available()));
+        copy(is, baos);
         return baos.toByteArray();
     }
     
+    /**
+     * Copies the rest of in to out, closing neither.
+     * @return
+     * The number of bytes copied.
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        long total = 0;
+        for (int r; (r = in.read(buf)) >= 0; total += r)
+            out.write(buf, 0, r);
+        return total;
+    }
+    
+    /**
+     * Reads a buffer from its position to its limit, without copying it first.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+        
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf.duplicate();
+        }
+        
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (! buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+        
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+        
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+    
     /**
      * create a basic metadata document around raw content containing its type
      */
@@ -0,0 +1,78 @@
+package org.baseparadigm;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class ContainmentIndexTest extends TestCase {
+    private final Repo repo = new Repo();
+    private final Random rand = new Random(23);
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    /**
+     * Up to perField keywords in each of the first three fields, drawn
+     * from a small vocabulary so subsets actually turn up.
+     */
+    private GraphDatum random(int perField) {
+        GraphDatum gd = new GraphDatum(repo);
+        for (SubjectPredicateObject spo : new SubjectPredicateObject[] {
+                SubjectPredicateObject.SUBJECTS, SubjectPredicateObject.PREDICATES, SubjectPredicateObject.OBJECTS })
+            for (int i = rand.nextInt(perField + 1); i > 0; i--)
+                gd.build(spo, word(spo.name().charAt(0) + "" + rand.nextInt(8)));
+        return gd;
+    }
+
+    public void testAgreesWithCheckingEachNegative() {
+        Set<GraphDatum> negatives = new HashSet<GraphDatum>();
+        for (int i = 0; i < 300; i++) {
+            GraphDatum gd = random(1);
+            if (! gd.isEmpty()) // an empty one would match everything
+                negatives.add(gd);
+        }
+        ContainmentIndex index = new ContainmentIndex(negatives);
+        assertEquals(negatives.size(), index.size());
+        int supersets = 0;
+        for (int i = 0; i < 2000; i++) {
+            GraphDatum gd = random(3);
+            boolean expected = gd.isSupersetOfAny(negatives);
+            assertEquals(expected, gd.isSupersetOfAny(index));
+            if (expected) {
+                supersets++;
+                assertTrue(gd.isSupersetOf(index.findSubsetOf(gd)));
+            }
+        }
+        assertTrue(supersets > 0 && supersets < 2000);
+    }
+
+    public void testRemove() {
+        GraphDatum negative = new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("a"))
+                .build(SubjectPredicateObject.OBJECTS, word("b"));
+        GraphDatum superset = new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("a"))
+                .build(SubjectPredicateObject.PREDICATES, word("c"))
+                .build(SubjectPredicateObject.OBJECTS, word("b"));
+        ContainmentIndex index = new ContainmentIndex();
+        index.add(negative);
+        assertTrue(index.hasSubsetOf(superset));
+        assertFalse(index.hasSubsetOf(new GraphDatum(repo).build(SubjectPredicateObject.SUBJECTS, word("a"))));
+        assertFalse(index.remove(superset));
+        assertTrue(index.remove(negative));
+        assertEquals(0, index.size());
+        assertFalse(index.hasSubsetOf(superset));
+    }
+
+    public void testEmptyNegativeIsASubsetOfAnything() {
+        ContainmentIndex index = new ContainmentIndex();
+        GraphDatum gd = new GraphDatum(repo).build(SubjectPredicateObject.SUBJECTS, word("a"));
+        assertFalse(index.hasSubsetOf(gd));
+        index.add(new GraphDatum(repo));
+        assertTrue(index.hasSubsetOf(gd));
+        assertTrue(index.hasSubsetOf(new GraphDatum(repo)));
+    }
+}
@@ -0,0 +1,42 @@
+package org.baseparadigm;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ContentIdTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    public void testOrderingMatchesBigInteger() {
+        Random rand = new Random(42);
+        byte[] a = new byte[repo.keyLength], b = new byte[repo.keyLength];
+        for (int i = 0; i < 10000; i++) {
+            rand.nextBytes(a);
+            rand.nextBytes(b);
+            if (i % 3 == 0)
+                System.arraycopy(a, 0, b, 0, rand.nextInt(a.length));
+            int expected = Integer.signum(new BigInteger(a).compareTo(new BigInteger(b)));
+            assertEquals(expected, Integer.signum(new ContentId(repo, a).compareTo(new ContentId(repo, b))));
+        }
+    }
+
+    public void testBigIntegerRoundTripKeepsWidth() {
+        byte[] negative = new byte[repo.keyLength];
+        negative[0] = -1;
+        negative[1] = -1;
+        negative[2] = 7;
+        ContentId id = new ContentId(repo, negative);
+        ContentId viaBigInteger = new ContentId(repo, id.toBigInteger());
+        assertEquals(id, viaBigInteger);
+        assertEquals(repo.keyLength, viaBigInteger.toByteArray().length);
+        assertTrue(java.util.Arrays.equals(negative, viaBigInteger.toByteArray()));
+    }
+
+    public void testWriteTo() {
+        ContentId id = repo.idFor("hello".getBytes(Repo.defaultCharset));
+        byte[] buf = new byte[repo.keyLength + 3];
+        assertEquals(buf.length, id.writeTo(buf, 3));
+        assertEquals(id, new ContentId(repo, java.util.Arrays.copyOfRange(buf, 3, buf.length)));
+    }
+}
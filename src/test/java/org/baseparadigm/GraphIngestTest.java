@@ -0,0 +1,220 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+public class GraphIngestTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    private List<GraphDatum> triples(int n) {
+        List<GraphDatum> ret = new ArrayList<GraphDatum>();
+        for (int i = 0; i < n; i++) {
+            GraphDatum gd = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.SUBJECTS, word("s" + i % 101))
+                    .build(SubjectPredicateObject.PREDICATES, word("p" + i % 5))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + i));
+            gd.getId();
+            ret.add(gd);
+        }
+        return ret;
+    }
+
+    /**
+     * Adds data from threads threads, each taking every threads-th datum.
+     */
+    private static void addConcurrently(final GraphIngest ingest, final List<GraphDatum> data, final int threads)
+            throws InterruptedException {
+        Thread[] adders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            adders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < data.size(); i += threads)
+                        ingest.add(data.get(i));
+                }
+            };
+            adders[t].start();
+        }
+        for (Thread t : adders)
+            t.join();
+    }
+
+    public void testConcurrentIngestMatchesSequentialAdds() throws InterruptedException {
+        List<GraphDatum> data = triples(20000);
+        Graph reference = new Graph(repo);
+        for (GraphDatum gd : data)
+            reference.add(gd);
+
+        Graph g = new Graph(repo);
+        GraphIngest ingest = new GraphIngest(g, 4, 1000);
+        addConcurrently(ingest, data, 8);
+        ingest.flush();
+        assertEquals(data.size(), g.getCommitted());
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+            assertEquals(reference.idx.get(spo).keySet(), g.idx.get(spo).keySet());
+            for (ContentId keyword : reference.idx.get(spo).keySet())
+                assertEquals(reference.query(spo, keyword), g.query(spo, keyword));
+        }
+        GraphDatum q = new GraphDatum(repo)
+                .build(SubjectPredicateObject.PREDICATES, word("p2"))
+                .build(SubjectPredicateObject.SUBJECTS, word("s7"));
+        assertEquals(reference.query(q), g.query(q));
+        ingest.close();
+    }
+
+    public void testQueriesSeeACommittedPrefix() throws InterruptedException {
+        final List<GraphDatum> data = triples(20000);
+        final Map<ContentId, GraphDatum> byId = new HashMap<ContentId, GraphDatum>();
+        for (GraphDatum gd : data)
+            byId.put(gd.getId(), gd);
+        final Graph g = new Graph(repo);
+        final GraphIngest ingest = new GraphIngest(g, 3, 100);
+        final ContentId p1 = word("p1");
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> problem = new AtomicReference<String>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (! done.get() && problem.get() == null) {
+                    int before = g.getCommitted();
+                    Set<ContentId> found = g.query(SubjectPredicateObject.PREDICATES, p1);
+                    int after = g.getCommitted();
+                    int inPrefix = 0;
+                    for (int ord = 0; ord < before; ord++)
+                        if (byId.get(g.datumAt(ord)).get(SubjectPredicateObject.PREDICATES).contains(p1)) {
+                            inPrefix++;
+                            if (! found.contains(g.datumAt(ord)))
+                                problem.set("committed ordinal "+ ord +" is missing");
+                        }
+                    if (found.size() < inPrefix || found.size() > after)
+                        problem.set(found.size() +" results with "+ before +" to "+ after +" committed");
+                }
+            }
+        };
+        reader.start();
+        addConcurrently(ingest, data, 4);
+        ingest.close();
+        done.set(true);
+        reader.join();
+        assertNull(problem.get(), problem.get());
+        assertEquals(data.size() / 5, g.query(SubjectPredicateObject.PREDICATES, p1).size());
+    }
+
+    public void testGraphAddGoesThroughAnOpenIngest() {
+        Graph g = new Graph(repo);
+        GraphIngest ingest = new GraphIngest(g, 2, 10);
+        try {
+            new GraphIngest(g, 2, 10);
+            fail();
+        } catch (IllegalStateException expected) {}
+        List<GraphDatum> data = triples(100);
+        for (GraphDatum gd : data)
+            g.add(gd); // each visible once add returns
+        assertEquals(100, g.getCommitted());
+        ingest.close();
+        g.add(triples(101).get(100));
+        assertEquals(101, g.getCommitted());
+        try {
+            ingest.add(data.get(0));
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testDataReachEveryRepo() throws InterruptedException {
+        Graph g = new Graph(repo);
+        List<Repo> others = new ArrayList<Repo>();
+        for (int i = 0; i < 3; i++) {
+            Repo other = new Repo();
+            others.add(other);
+            g.repos.add(other);
+        }
+        GraphIngest ingest = new GraphIngest(g, 2, 100);
+        List<GraphDatum> data = triples(200);
+        addConcurrently(ingest, data, 4);
+        ingest.close();
+        for (Repo other : others)
+            for (GraphDatum gd : data)
+                assertTrue(other.containsKey(gd.getId().in(other)));
+    }
+
+    public void testGraphAddWhileIngestsOpenAndClose() throws InterruptedException {
+        final List<GraphDatum> data = triples(5000);
+        Graph reference = new Graph(repo);
+        for (GraphDatum gd : data)
+            reference.add(gd);
+
+        final Graph g = new Graph(repo);
+        final int threads = 4;
+        Thread[] adders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            adders[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < data.size(); i += threads)
+                        g.add(data.get(i));
+                }
+            };
+            adders[t].start();
+        }
+        boolean adding = true;
+        while (adding) {
+            // each ingest takes over partway through someone's add, and
+            // closes while others are adding through it
+            new GraphIngest(g, 2, 50).close();
+            adding = false;
+            for (Thread t : adders)
+                adding |= t.isAlive();
+        }
+        for (Thread t : adders)
+            t.join();
+        assertEquals(data.size(), g.datumCount());
+        assertEquals(data.size(), g.getCommitted());
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            for (ContentId keyword : reference.idx.get(spo).keySet())
+                assertEquals(reference.query(spo, keyword), g.query(spo, keyword));
+    }
+
+    public void testAddThatRunsOutOfMemoryLeavesNothingBehind() {
+        Graph g = new Graph(repo, OffHeapArena.SLAB_SIZE);
+        GraphIngest ingest = new GraphIngest(g, 2, 100);
+        GraphDatum failed = null;
+        for (int i = 0; i < 100000 && failed == null; i++) {
+            // every keyword new, so every posting needs a block of its own
+            GraphDatum gd = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.SUBJECTS, word("s" + i))
+                    .build(SubjectPredicateObject.PREDICATES, word("p" + i))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + i));
+            try {
+                ingest.add(gd);
+            } catch (IllegalStateException expected) {
+                failed = gd;
+            }
+        }
+        assertNotNull(failed);
+        assertFalse(g.isIndexed(failed.getId()));
+        ingest.close();
+        assertEquals(g.datumCount(), g.getCommitted());
+
+        // the lists of the first datum have room, so this one fits
+        GraphDatum fits = new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s0"))
+                .build(SubjectPredicateObject.PREDICATES, word("p0"))
+                .build(SubjectPredicateObject.OBJECTS, word("o1"));
+        g.add(fits);
+        assertEquals(g.datumCount(), g.getCommitted());
+        assertTrue(g.query(SubjectPredicateObject.SUBJECTS, word("s0")).contains(fits.getId()));
+    }
+}
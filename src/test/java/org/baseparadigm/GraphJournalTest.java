@@ -0,0 +1,153 @@
+package org.baseparadigm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class GraphJournalTest extends TestCase {
+    private File dir;
+    private final AtomicInteger reads = new AtomicInteger();
+    // stands in for a persistent repo that outlives each journal
+    private final Repo repo = new Repo() {
+        @Override
+        public byte[] get(Object key) {
+            reads.incrementAndGet();
+            return super.get(key);
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    private GraphDatum triple(int i) {
+        return new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s" + i % 17))
+                .build(SubjectPredicateObject.PREDICATES, word("p" + i % 3))
+                .build(SubjectPredicateObject.OBJECTS, word("o" + i));
+    }
+
+    private static void assertSameIndexes(Graph expected, Graph actual) {
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values()) {
+            assertEquals(expected.idx.get(spo).keySet(), actual.idx.get(spo).keySet());
+            for (ContentId keyword : expected.idx.get(spo).keySet())
+                assertEquals(expected.query(spo, keyword), actual.query(spo, keyword));
+        }
+    }
+
+    public void testReopenAfterCloseReadsNothingFromTheRepo() throws IOException {
+        Graph reference = new Graph(repo);
+        GraphJournal journal = new GraphJournal(dir, repo);
+        for (int i = 0; i < 1000; i++) {
+            journal.add(triple(i));
+            reference.add(triple(i));
+        }
+        journal.close();
+
+        reads.set(0);
+        GraphJournal reopened = new GraphJournal(dir, repo);
+        assertEquals(0, reads.get());
+        assertEquals(0, reopened.getReplayed());
+        assertSameIndexes(reference, reopened.graph);
+
+        // ordinals carry on where the checkpoint left off
+        reopened.add(triple(1000));
+        reference.add(triple(1000));
+        assertSameIndexes(reference, reopened.graph);
+        reopened.close();
+    }
+
+    public void testCrashReplaysOnlyTheLogTail() throws IOException {
+        Graph reference = new Graph(repo);
+        GraphJournal journal = new GraphJournal(dir, new Graph(repo), 300);
+        for (int i = 0; i < 1000; i++) {
+            journal.add(triple(i));
+            reference.add(triple(i));
+        }
+        journal.add(triple(5)); // already indexed, so not logged again
+        // no close: the last checkpoint was at 900
+        GraphJournal recovered = new GraphJournal(dir, repo);
+        assertEquals(100, recovered.getReplayed());
+        assertSameIndexes(reference, recovered.graph);
+        recovered.close();
+    }
+
+    public void testTornRecordIsDropped() throws IOException {
+        GraphJournal journal = new GraphJournal(dir, repo);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < 10; i++) {
+            GraphDatum gd = triple(i);
+            journal.add(gd);
+            ids.add(gd.getId());
+        }
+        File log = new File(dir, GraphJournal.LOG_FILE);
+        long intact = log.length();
+        // half a record, as if the machine died mid write
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write(new byte[repo.keyLength / 2]);
+        } finally {
+            out.close();
+        }
+        GraphJournal recovered = new GraphJournal(dir, repo);
+        assertEquals(10, recovered.getReplayed());
+        assertEquals(intact, log.length());
+        for (ContentId id : ids)
+            assertTrue(recovered.graph.isIndexed(id));
+        recovered.close();
+    }
+
+    public void testCorruptCheckpointIsRefused() throws IOException {
+        GraphJournal journal = new GraphJournal(dir, repo);
+        journal.add(triple(0));
+        journal.close();
+        File checkpoint = new File(dir, GraphJournal.CHECKPOINT_FILE);
+        byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+        bytes[20] ^= 1;
+        Files.write(checkpoint.toPath(), bytes);
+        try {
+            new GraphJournal(dir, repo);
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testFailedAddIsCutFromTheLog() throws IOException {
+        GraphJournal journal = new GraphJournal(dir, new Graph(repo, OffHeapArena.SLAB_SIZE), 1000000);
+        int added = 0;
+        GraphDatum failed = null;
+        for (int i = 0; failed == null; i++) {
+            GraphDatum gd = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.SUBJECTS, word("s" + i))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + i));
+            try {
+                journal.add(gd);
+                added++;
+            } catch (IllegalStateException atTheCap) {
+                failed = gd;
+            }
+        }
+        assertEquals(GraphJournal.LOG_HEADER + (long) added * (repo.keyLength + 4),
+                new File(dir, GraphJournal.LOG_FILE).length());
+        // no close, as after a crash
+        GraphJournal recovered = new GraphJournal(dir, repo);
+        assertEquals(added, recovered.getReplayed());
+        assertFalse(recovered.graph.isIndexed(failed.getId()));
+        recovered.close();
+    }
+}
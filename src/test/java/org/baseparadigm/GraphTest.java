@@ -0,0 +1,151 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class GraphTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    private GraphDatum triple(int i, int subjects, int predicates, int objects) {
+        return new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s" + i % subjects))
+                .build(SubjectPredicateObject.PREDICATES, word("p" + i % predicates))
+                .build(SubjectPredicateObject.OBJECTS, word("o" + i % objects))
+                .build(SubjectPredicateObject.PATTERNS, word("pattern" + i % 2));
+    }
+
+    public void testSingleTermQueries() {
+        Graph g = new Graph(repo);
+        List<GraphDatum> added = new ArrayList<GraphDatum>();
+        for (int i = 0; i < 100; i++) {
+            GraphDatum gd = triple(i, 10, 3, 7);
+            g.add(gd);
+            added.add(gd);
+        }
+        g.add(added.get(0)); // indexing twice changes nothing
+        for (SubjectPredicateObject spo : new SubjectPredicateObject[] {
+                SubjectPredicateObject.SUBJECTS, SubjectPredicateObject.PREDICATES,
+                SubjectPredicateObject.OBJECTS, SubjectPredicateObject.PATTERNS }) {
+            for (ContentId keyword : g.idx.get(spo).keySet()) {
+                Set<ContentId> expected = new HashSet<ContentId>();
+                for (GraphDatum gd : added)
+                    if (gd.get(spo).contains(keyword))
+                        expected.add(gd.getId());
+                assertEquals(expected, g.query(spo, keyword));
+                assertEquals(expected.size(), g.idx.get(spo).cardinality(keyword));
+            }
+        }
+        assertTrue(g.query(SubjectPredicateObject.AUTHORS, word("nobody")).isEmpty());
+    }
+
+    public void testConjunctiveQueryMatchesBruteForce() {
+        Graph g = new Graph(repo);
+        List<GraphDatum> added = new ArrayList<GraphDatum>();
+        // enough data that the common postings span several blocks
+        for (int i = 0; i < 10000; i++) {
+            GraphDatum gd = triple(i, 97, 5, 13);
+            g.add(gd);
+            added.add(gd);
+        }
+        GraphDatum q = new GraphDatum(repo)
+                .build(SubjectPredicateObject.PREDICATES, word("p2"))
+                .build(SubjectPredicateObject.OBJECTS, word("o4"));
+        Set<ContentId> expected = new HashSet<ContentId>();
+        for (GraphDatum gd : added)
+            if (gd.isSupersetOf(q))
+                expected.add(gd.getId());
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, g.query(q));
+        assertEquals(2000, g.query(SubjectPredicateObject.PREDICATES, word("p2")).size());
+    }
+
+    public void testPlannerMatchesBruteForceOnSkewedTerms() {
+        Graph g = new Graph(repo);
+        List<GraphDatum> added = new ArrayList<GraphDatum>();
+        Random rand = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            // predicate p0 is in about half the data, p9 in very few
+            int p = Integer.numberOfTrailingZeros(rand.nextInt() | 1 << 9);
+            GraphDatum gd = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.SUBJECTS, word("s" + rand.nextInt(50)))
+                    .build(SubjectPredicateObject.PREDICATES, word("p" + p))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + rand.nextInt(3)))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + (3 + rand.nextInt(3))));
+            g.add(gd);
+            added.add(gd);
+        }
+        for (int trial = 0; trial < 200; trial++) {
+            GraphDatum q = new GraphDatum(repo)
+                    .build(SubjectPredicateObject.PREDICATES, word("p" + rand.nextInt(10)))
+                    .build(SubjectPredicateObject.OBJECTS, word("o" + rand.nextInt(3)));
+            if (trial % 2 == 0)
+                q.build(SubjectPredicateObject.SUBJECTS, word("s" + rand.nextInt(50)));
+            Set<ContentId> expected = new HashSet<ContentId>();
+            for (GraphDatum gd : added)
+                if (gd.isSupersetOf(q))
+                    expected.add(gd.getId());
+            assertEquals(expected, g.query(q));
+            assertEquals(expected, g.query(q));
+        }
+        GraphDatum unknown = new GraphDatum(repo)
+                .build(SubjectPredicateObject.PREDICATES, word("p0"))
+                .build(SubjectPredicateObject.AUTHORS, word("nobody"));
+        assertTrue(g.query(unknown).isEmpty());
+    }
+
+    public void testIndexMemoryIsCapped() {
+        Graph g = new Graph(repo, OffHeapArena.SLAB_SIZE);
+        try {
+            for (int i = 0; i < 100000; i++)
+                g.add(triple(i, 100000, 100000, 100000));
+            fail("expected the index to run out of memory");
+        } catch (IllegalStateException expected) {
+            assertEquals(OffHeapArena.SLAB_SIZE, g.getIndexBytes());
+        }
+    }
+
+    public void testAddThatRunsOutOfMemoryLeavesNothingBehind() {
+        Graph g = new Graph(repo, OffHeapArena.SLAB_SIZE);
+        int added = 0;
+        GraphDatum failed = null;
+        for (int i = 0; i < 100000 && failed == null; i++) {
+            GraphDatum gd = triple(i, 100000, 100000, 100000);
+            try {
+                g.add(gd);
+                added++;
+            } catch (IllegalStateException expected) {
+                failed = gd;
+            }
+        }
+        assertNotNull(failed);
+        assertFalse(g.isIndexed(failed.getId()));
+        assertEquals(added, g.datumCount());
+        assertEquals(added, g.getCommitted());
+        // retrying fails again rather than finding it already indexed
+        try {
+            g.add(failed);
+            fail();
+        } catch (IllegalStateException expected) {}
+
+        // only keywords whose lists have room, so this one fits
+        GraphDatum fits = new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s0"))
+                .build(SubjectPredicateObject.PREDICATES, word("p1"))
+                .build(SubjectPredicateObject.OBJECTS, word("o2"))
+                .build(SubjectPredicateObject.PATTERNS, word("pattern0"));
+        g.add(fits);
+        assertEquals(added + 1, g.getCommitted());
+        assertTrue(g.query(SubjectPredicateObject.SUBJECTS, word("s0")).contains(fits.getId()));
+        for (ContentId keyword : failed.get(SubjectPredicateObject.PATTERNS))
+            assertFalse(g.query(SubjectPredicateObject.PATTERNS, keyword).contains(failed.getId()));
+    }
+}
@@ -0,0 +1,87 @@
+package org.baseparadigm;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class IdSchemeTest extends TestCase {
+
+    /**
+     * The SHA-512 ids that used to be hardcoded in Repo.
+     */
+    public void testDefaultWellKnownIdsAreUnchanged() {
+        Repo repo = new Repo();
+        assertEquals(Repo.COMMONS_KEY_LENGTH, repo.keyLength);
+        assertTrue(Arrays.equals(new byte[]{ -66, 91, -126, 63, -122, 94, -15, 25, -108, -27, -71, -128, -68, -1, -5, 49, -99, -114, -119
+                , -20, 108, -99, 117, -58, 5, -23, -5, -22, -10, 18, 33, -82, -43, -18, -82, 24, 94, 47, -30, -78, -26, -15
+                , 94, -44, -120, 121, 67, -21, 52, 53, -128, -57, -35, 36, 112, 35, -45, 75, 117, -15, -87, 59, -14, -40 },
+                repo.OBJECTSid.toByteArray()));
+        assertTrue(Arrays.equals(new byte[]{
+                -128, 22 , -51, 107, 60 , 13 , -87 , 95
+                , 25 , 16 , 74 , 89 , -15, -84, -103, 9
+                ,-13 , 95 , -85, 78 , 52 , 59 , -20 , -58
+                ,-21, -125, 115, 53 , 65, -119, -38 , 14
+                ,-100, -44, -26, -57, -99, -42, -80 , -94
+                , 23 , -36, -47, -32, 13 , 80 , -66 , 30
+                , 118, 78 , 112, -9, -108, 12 , -40 , 15
+                , 27 , 51 , 53 , 109, 95, -102, -58 , 39 },
+                repo.PATTERNSid.toByteArray()));
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            assertEquals(repo.idFor(spo.name().getBytes(Repo.defaultCharset)), repo.idFor(spo));
+    }
+
+    public void testTruncatedIdsArePrefixesOfTheDigest() throws Exception {
+        Repo repo = new Repo(IdScheme.SHA512_TRUNCATED_32);
+        assertEquals(32, repo.keyLength);
+        assertEquals("SHA-512[32]", repo.getIdScheme().name());
+        byte[] value = "some content".getBytes(Repo.defaultCharset);
+        byte[] full = MessageDigest.getInstance("SHA-512").digest(value);
+        assertTrue(Arrays.equals(Arrays.copyOf(full, 32), repo.put(value).toByteArray()));
+        assertEquals(32, repo.OBJECTSid.length());
+    }
+
+    public void testMaxRangeFollowsTheKeyLength() {
+        BigInteger span32 = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+        assertEquals(span32, new Repo(IdScheme.SHA256).getMaxRange());
+        assertEquals(span32, new Repo(IdScheme.SHA512_TRUNCATED_32).getMaxRange());
+        assertEquals(BigInteger.ONE.shiftLeft(512).subtract(BigInteger.ONE), new Repo().getMaxRange());
+    }
+
+    public void testDatumsRoundTripWithShorterIds() {
+        Repo repo = new Repo(IdScheme.SHA256);
+        GraphDatum gd = new GraphDatum(repo);
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            gd.build(spo, (spo.name() + " value").getBytes(Repo.defaultCharset));
+        ContentId id = gd.getId();
+        assertEquals(32, id.length());
+        assertEquals(6 * 2 * 32, repo.get(id).length);
+        GraphDatum inflated = new GraphDatum(repo, id);
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            assertEquals(gd.get(spo), inflated.get(spo));
+    }
+
+    public void testMetadataRecordsTheScheme() {
+        Repo repo = new Repo(IdScheme.SHA256);
+        MapDatum meta = MapDatum.view(repo, ByteBuffer.wrap(repo.getRepoMetadata()));
+        SetDatum scheme = meta.get(repo.idFor("ID_SCHEME".getBytes(Repo.defaultCharset)));
+        assertEquals(1, scheme.size());
+        assertEquals("SHA-256", new String(scheme.iterator().next().resolve(), Repo.defaultCharset));
+        assertEquals(1, meta.get(repo.idFor("KEY_LENGTH".getBytes(Repo.defaultCharset))).size());
+    }
+
+    public void testKeyLengthMustFitTheDigest() {
+        try {
+            new DigestIdScheme("SHA-256", 33);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new DigestIdScheme("NOT-A-DIGEST");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
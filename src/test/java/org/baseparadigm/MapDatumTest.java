@@ -0,0 +1,154 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class MapDatumTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    private GraphDatum built() {
+        GraphDatum gd = new GraphDatum(repo);
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            gd.build(spo, (spo.name() + " value").getBytes(Repo.defaultCharset));
+        return gd;
+    }
+
+    public void testLazyInflationMatchesEagerParse() {
+        GraphDatum original = built();
+        ContentId id = original.getId();
+        MapDatum lazy = new MapDatum(repo, id);
+        SortedMap<ContentId, SetDatum> eager = MapDatum.toMap(repo, id);
+        assertEquals(eager.size(), lazy.size());
+        assertEquals(new ArrayList<ContentId>(eager.keySet()), new ArrayList<ContentId>(lazy.keySet()));
+        for (Map.Entry<ContentId, SetDatum> e : eager.entrySet()) {
+            assertEquals(e.getValue(), lazy.get(e.getKey()));
+            assertEquals(original.get(e.getKey()), lazy.get(e.getKey()));
+        }
+        assertEquals(original.lastKey(), lazy.lastKey());
+        assertEquals(original.headMap(original.lastKey()).keySet(), lazy.headMap(lazy.lastKey()).keySet());
+        assertTrue(Arrays.equals(original.toByteArray(), lazy.toByteArray()));
+        assertNull(lazy.get(repo.idFor("not a key".getBytes(Repo.defaultCharset))));
+    }
+
+    public void testGraphDatumRoundTrip() {
+        GraphDatum original = built();
+        GraphDatum inflated = new GraphDatum(original.getId());
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            assertEquals(original.get(spo), inflated.get(spo));
+        assertTrue(inflated.isSupersetOf(original));
+        assertEquals(original.getId(), repo.idFor(inflated));
+    }
+
+    public void testChangingOneFieldOnlyStoresThatFieldAgain() {
+        final int[] stores = {0};
+        Repo counting = new Repo() {
+            @Override
+            protected byte[] store(ContentId key, byte[] value) {
+                stores[0]++;
+                return super.store(key, value);
+            }
+        };
+        MapDatum map = new MapDatum(counting);
+        ContentId member = counting.idFor("member".getBytes(Repo.defaultCharset));
+        for (int i = 0; i < 100; i++)
+            map.put(counting.idFor(("field " + i).getBytes(Repo.defaultCharset)), member);
+        ContentId before = map.getId();
+        assertEquals(before, map.getId());
+
+        stores[0] = 0;
+        ContentId field = counting.idFor("field 42".getBytes(Repo.defaultCharset));
+        map.put(field, counting.idFor("another member".getBytes(Repo.defaultCharset)));
+        ContentId after = map.getId();
+        assertFalse(before.equals(after));
+        // the new set for field 42 and the map itself
+        assertEquals(2, stores[0]);
+        assertEquals(2, new MapDatum(counting, after).get(field).size());
+    }
+
+    public void testChangesThroughViewsChangeTheId() {
+        MapDatum map = new MapDatum(repo);
+        ContentId member = repo.idFor("member".getBytes(Repo.defaultCharset));
+        for (int i = 0; i < 3; i++)
+            map.put(repo.idFor(("field " + i).getBytes(Repo.defaultCharset)), member);
+        ContentId before = map.getId();
+        Iterator<ContentId> keys = map.keySet().iterator();
+        keys.next();
+        keys.remove();
+        ContentId after = map.getId();
+        assertFalse(before.equals(after));
+        assertEquals(repo.idFor(map), after);
+        ContentId frozen = map.buildFinish().getId();
+        assertEquals(after, frozen);
+        assertSame(frozen, map.getId());
+    }
+
+    /**
+     * Counts getAll calls and the gets made outside of them.
+     */
+    private static class CountingRepo extends Repo {
+        int batches = 0, singles = 0;
+        private boolean inBatch = false;
+        @Override
+        public byte[] get(Object key) {
+            if (! inBatch)
+                singles++;
+            return super.get(key);
+        }
+        @Override
+        public Map<ContentId, byte[]> getAll(Iterable<ContentId> keys) {
+            batches++;
+            inBatch = true;
+            try {
+                return super.getAll(keys);
+            } finally {
+                inBatch = false;
+            }
+        }
+    }
+
+    public void testEagerParseReadsValueSetsTogether() {
+        CountingRepo counting = new CountingRepo();
+        GraphDatum gd = new GraphDatum(counting);
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            gd.build(spo, spo.name().getBytes(Repo.defaultCharset));
+        ContentId id = gd.getId();
+        counting.batches = counting.singles = 0;
+        SortedMap<ContentId, SetDatum> eager = MapDatum.toMap(counting, id);
+        assertEquals(SubjectPredicateObject.values().length, eager.size());
+        assertEquals(1, counting.batches);
+        // just the map itself
+        assertEquals(1, counting.singles);
+        assertEquals(gd.get(counting.SUBJECTSid), eager.get(counting.SUBJECTSid));
+    }
+
+    public void testGraphDataInflatesInBatches() {
+        CountingRepo counting = new CountingRepo();
+        SetDatum members = new SetDatum(counting);
+        for (int i = 0; i < 100; i++) {
+            GraphDatum gd = new GraphDatum(counting);
+            for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+                gd.build(spo, (spo.name() + i).getBytes(Repo.defaultCharset));
+            members.add(gd.getId());
+        }
+        GraphData data = new GraphData(members.buildFinish());
+        counting.batches = counting.singles = 0;
+        List<GraphDatum> inflated = data.inflate();
+        assertEquals(1, counting.batches);
+        assertEquals(100, inflated.size());
+        counting.batches = 0;
+        TreeSet<ContentId> seen = new TreeSet<ContentId>();
+        for (Iterator<GraphDatum> it = data.iterator(); it.hasNext();)
+            seen.add(it.next().getId());
+        assertEquals(members, seen);
+        assertEquals(2, counting.batches);
+        assertEquals(0, counting.singles);
+        assertTrue(Arrays.equals(new GraphDatum(members.last()).toByteArray(), inflated.get(99).toByteArray()));
+    }
+}
@@ -0,0 +1,147 @@
+package org.baseparadigm;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class PatternInflatorTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    /**
+     * Remembers which inflator made it.
+     */
+    private static class StubPattern implements Pattern {
+        final PatternInflator by;
+        StubPattern(PatternInflator by) {
+            this.by = by;
+        }
+        public boolean isPartialMatch(GraphData g) { return false; }
+        public boolean isPartialMatch(GraphDatum g) { return false; }
+        public boolean isCompleteMatch(GraphData g) { return false; }
+        public Iterator<GraphData> partialMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public Iterator<GraphData> completeMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public void init(ContentId cid) {}
+        public ContentId stuff(Repo r) { throw new UnsupportedOperationException(); }
+    }
+
+    private static class CountingInflator extends PatternInflator {
+        final AtomicInteger inflations = new AtomicInteger();
+        @Override
+        public Pattern inflate(ContentId shrunkPattern) {
+            inflations.incrementAndGet();
+            return new StubPattern(this);
+        }
+    }
+
+    private ContentId pattern(String type, String content) {
+        return new MapDatum(repo)
+                .build(MetadataFields.TYPE, type.getBytes(repo.getCharset()))
+                .build(MetadataFields.CONTENT, content.getBytes(repo.getCharset()))
+                .getId();
+    }
+
+    @Override
+    protected void tearDown() {
+        PatternInflator.unregister("a");
+        PatternInflator.registerDefaultInflator(null);
+    }
+
+    public void testEachPatternIsInflatedOnce() {
+        CountingInflator fallback = new CountingInflator();
+        PatternInflator.registerDefaultInflator(fallback);
+        ContentId p = pattern("a", "x");
+        Pattern first = PatternInflator.inflat(p);
+        assertSame(first, PatternInflator.inflat(p));
+        assertEquals(1, fallback.inflations.get());
+        PatternInflator.inflat(pattern("a", "y"));
+        assertEquals(2, fallback.inflations.get());
+    }
+
+    public void testDispatchesByType() {
+        CountingInflator fallback = new CountingInflator();
+        CountingInflator typed = new CountingInflator();
+        PatternInflator.registerDefaultInflator(fallback);
+        PatternInflator.register("a", typed);
+        assertSame(typed, ((StubPattern) PatternInflator.inflat(pattern("a", "x"))).by);
+        assertSame(fallback, ((StubPattern) PatternInflator.inflat(pattern("b", "x"))).by);
+        PatternInflator.unregister("a");
+        assertSame(fallback, ((StubPattern) PatternInflator.inflat(pattern("a", "x"))).by);
+    }
+
+    public void testNoInflatorRegistered() {
+        try {
+            PatternInflator.inflat(pattern("a", "x"));
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testCacheIsBounded() {
+        CountingInflator fallback = new CountingInflator();
+        PatternInflator.registerDefaultInflator(fallback);
+        ContentId eldest = pattern("a", "0");
+        PatternInflator.inflat(eldest);
+        for (int i = 1; i <= PatternInflator.CACHE_SIZE; i++)
+            PatternInflator.inflat(pattern("a", "" + i));
+        assertEquals(PatternInflator.CACHE_SIZE + 1, fallback.inflations.get());
+        PatternInflator.inflat(eldest);
+        assertEquals(PatternInflator.CACHE_SIZE + 2, fallback.inflations.get());
+    }
+
+    public void testInflatedBeforeARegisterIsNotCached() {
+        final CountingInflator typed = new CountingInflator();
+        CountingInflator fallback = new CountingInflator() {
+            @Override
+            public Pattern inflate(ContentId shrunkPattern) {
+                // as if another thread registered while this one inflates
+                PatternInflator.register("a", typed);
+                return super.inflate(shrunkPattern);
+            }
+        };
+        PatternInflator.registerDefaultInflator(fallback);
+        ContentId p = pattern("a", "x");
+        assertSame(fallback, ((StubPattern) PatternInflator.inflat(p)).by);
+        assertSame(typed, ((StubPattern) PatternInflator.inflat(p)).by);
+    }
+
+    public void testPatternThatIsNotAMapDatumGoesToTheDefault() {
+        CountingInflator fallback = new CountingInflator();
+        PatternInflator.registerDefaultInflator(fallback);
+        PatternInflator.register("a", new CountingInflator());
+        ContentId raw = repo.put(new byte[] {1, 2, 3});
+        assertSame(fallback, ((StubPattern) PatternInflator.inflat(raw)).by);
+    }
+
+    public void testPatternsInUseSurviveEviction() {
+        CountingInflator fallback = new CountingInflator();
+        PatternInflator.registerDefaultInflator(fallback);
+        ContentId hot = pattern("a", "hot");
+        PatternInflator.inflat(hot);
+        for (int i = 0; i < 3 * PatternInflator.CACHE_SIZE; i++) {
+            PatternInflator.inflat(pattern("a", "" + i));
+            PatternInflator.inflat(hot);
+        }
+        assertEquals(3 * PatternInflator.CACHE_SIZE + 1, fallback.inflations.get());
+    }
+
+    public void testRepoFailuresAreNotTakenForOtherFormats() {
+        final ContentId[] broken = new ContentId[1];
+        Repo failing = new Repo() {
+            @Override
+            public byte[] get(Object key) {
+                if (key.equals(broken[0]))
+                    throw new IllegalStateException("disk failure");
+                return super.get(key);
+            }
+        };
+        broken[0] = failing.put("x".getBytes(Repo.defaultCharset));
+        PatternInflator.registerDefaultInflator(new CountingInflator());
+        PatternInflator.register("a", new CountingInflator());
+        try {
+            PatternInflator.inflat(broken[0]);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("disk failure", expected.getMessage());
+        }
+    }
+}
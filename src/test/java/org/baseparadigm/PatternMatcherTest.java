@@ -0,0 +1,122 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class PatternMatcherTest extends TestCase {
+    private final Repo repo = new Repo();
+    private final ContentId even = repo.put("even".getBytes(Repo.defaultCharset));
+
+    /**
+     * Partially matches data whose predicates contain a keyword, and counts
+     * how many data it was asked about.
+     */
+    private static class PredicatePattern implements Pattern {
+        final ContentId predicate;
+        final AtomicInteger evaluated = new AtomicInteger();
+        PredicatePattern(ContentId predicate) {
+            this.predicate = predicate;
+        }
+        public boolean isPartialMatch(GraphDatum g) {
+            evaluated.incrementAndGet();
+            return g.get(SubjectPredicateObject.PREDICATES).contains(predicate);
+        }
+        public boolean isPartialMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public boolean isCompleteMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public Iterator<GraphData> partialMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public Iterator<GraphData> completeMatch(GraphData g) { throw new UnsupportedOperationException(); }
+        public void init(ContentId cid) {}
+        public ContentId stuff(Repo r) { throw new UnsupportedOperationException(); }
+    }
+
+    private GraphData data(int n) {
+        SetDatum members = new SetDatum(repo);
+        for (int i = 0; i < n; i++) {
+            GraphDatum gd = new GraphDatum(repo);
+            for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+                gd.build(spo, (spo.name() + i).getBytes(Repo.defaultCharset));
+            if (i % 2 == 0)
+                gd.build(SubjectPredicateObject.PREDICATES, even);
+            members.add(gd.getId());
+        }
+        return new GraphData(members.buildFinish());
+    }
+
+    public void testSameMatchesInSetOrder() {
+        GraphData data = data(1000);
+        List<ContentId> expected = new ArrayList<ContentId>();
+        PredicatePattern pattern = new PredicatePattern(even);
+        for (GraphDatum gd : data)
+            if (pattern.isPartialMatch(gd))
+                expected.add(gd.getId());
+        assertEquals(500, expected.size());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (int partitionSize : new int[] {1, 7, 64, 5000}) {
+            List<ContentId> found = new ArrayList<ContentId>();
+            Iterator<GraphDatum> it = new PatternMatcher(pool, partitionSize, 3).partialMatches(data, pattern);
+            while (it.hasNext())
+                found.add(it.next().getId());
+            assertEquals(expected, found);
+        }
+        pool.shutdown();
+    }
+
+    public void testNothingIsMatchedUntilAsked() {
+        PredicatePattern pattern = new PredicatePattern(even);
+        PatternMatcher.Matches matches = data(100).partialMatches(pattern);
+        assertEquals(0, pattern.evaluated.get());
+        assertTrue(matches.hasNext());
+        matches.close();
+        assertFalse(matches.hasNext());
+    }
+
+    public void testStoppingEarlyStaysWithinTheLookahead() {
+        PredicatePattern pattern = new PredicatePattern(even);
+        PatternMatcher.Matches matches = new PatternMatcher(Repo.ingestPool, 10, 2).partialMatches(data(2000), pattern);
+        for (int i = 0; i < 3; i++)
+            assertNotNull(matches.next());
+        matches.close();
+        // the partition being read and at most two ahead of it
+        assertTrue(pattern.evaluated.get() <= 30);
+    }
+
+    public void testPatternFailuresReachTheCaller() {
+        Pattern failing = new PredicatePattern(even) {
+            @Override
+            public boolean isPartialMatch(GraphDatum g) {
+                throw new IllegalStateException("broken pattern");
+            }
+        };
+        Iterator<GraphDatum> it = data(10).partialMatches(failing);
+        try {
+            it.hasNext();
+            fail();
+        } catch (IllegalStateException expected) {}
+    }
+
+    public void testDefaultPoolIsNotTheIngestPool() {
+        assertNotSame(Repo.ingestPool, new PatternMatcher().pool);
+        assertSame(PatternMatcher.defaultPool(), new PatternMatcher().pool);
+    }
+
+    public void testCloseFromAnotherThread() throws InterruptedException {
+        PredicatePattern pattern = new PredicatePattern(even);
+        final PatternMatcher.Matches matches = new PatternMatcher(Repo.ingestPool, 10, 4).partialMatches(data(2000), pattern);
+        assertNotNull(matches.next());
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                matches.close();
+            }
+        };
+        closer.start();
+        closer.join();
+        assertFalse(matches.hasNext());
+        assertTrue(pattern.evaluated.get() < 2000);
+    }
+}
@@ -0,0 +1,68 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PostingListTest extends TestCase {
+
+    private static List<Integer> fill(PostingList pl, Random rand, int n) {
+        List<Integer> ordinals = new ArrayList<Integer>();
+        int ord = -1;
+        for (int i = 0; i < n; i++) {
+            // mostly small gaps, sometimes gaps that take several varint bytes
+            ord += 1 + (rand.nextInt(10) == 0 ? rand.nextInt(1 << 20) : rand.nextInt(8));
+            pl.append(ord);
+            ordinals.add(ord);
+        }
+        return ordinals;
+    }
+
+    public void testCursorReadsBackWhatWasAppended() {
+        PostingList pl = new PostingList(new OffHeapArena(Graph.DEFAULT_MAX_INDEX_BYTES));
+        List<Integer> ordinals = fill(pl, new Random(9), 5000);
+        assertEquals(ordinals.size(), pl.size());
+        assertEquals(ordinals.get(ordinals.size() - 1).intValue(), pl.last());
+        PostingList.Cursor c = pl.cursor();
+        for (int expected : ordinals)
+            assertEquals(expected, c.next());
+        assertEquals(-1, c.next());
+    }
+
+    public void testAdvanceFindsFirstOrdinalAtLeastTarget() {
+        Random rand = new Random(10);
+        PostingList pl = new PostingList(new OffHeapArena(Graph.DEFAULT_MAX_INDEX_BYTES));
+        List<Integer> ordinals = fill(pl, rand, 20000);
+        int max = ordinals.get(ordinals.size() - 1);
+        for (int trial = 0; trial < 50; trial++) {
+            PostingList.Cursor c = pl.cursor();
+            int i = 0;
+            int target = 0;
+            for (int step = 0; ; step++) {
+                // even trials creep along in small steps for a while, then
+                // every trial strides to the end in a few hundred steps
+                boolean small = trial % 2 == 0 && step < 5000;
+                target += rand.nextInt(small ? 64 : max / 100);
+                while (i < ordinals.size() && ordinals.get(i) < target)
+                    i++;
+                int expected = i < ordinals.size() ? ordinals.get(i) : -1;
+                assertEquals(expected, c.advance(target));
+                if (expected < 0)
+                    break;
+            }
+            assertEquals(-1, c.next());
+        }
+    }
+
+    public void testAppendRejectsOrdinalsOutOfOrder() {
+        PostingList pl = new PostingList(new OffHeapArena(Graph.DEFAULT_MAX_INDEX_BYTES));
+        pl.append(3);
+        try {
+            pl.append(3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
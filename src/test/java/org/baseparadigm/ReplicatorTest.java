@@ -0,0 +1,99 @@
+package org.baseparadigm;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ReplicatorTest extends TestCase {
+
+    public void testBackupsCatchUpAfterAwait() throws Exception {
+        Repo primary = new Repo();
+        Repo backup = new Repo();
+        Replicator r = primary.addBackup(backup);
+        for (int i = 0; i < 5000; i++)
+            primary.put(("value " + i).getBytes(Repo.defaultCharset));
+        assertTrue(primary.awaitBackups(10, TimeUnit.SECONDS));
+        assertEquals(5000, backup.size());
+        assertEquals(5000, r.getReplicated());
+        assertEquals(0, r.getLag());
+        assertTrue(primary.removeBackup(backup));
+        assertTrue(primary.getBackups().isEmpty());
+    }
+
+    public void testPutsRacingRemoveBackupAreDroppedNotFailed() throws Exception {
+        final Repo primary = new Repo();
+        Repo backup = new Repo();
+        Replicator r = primary.addBackup(backup);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread putter = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    try {
+                        primary.put(("value " + i).getBytes(Repo.defaultCharset));
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        };
+        putter.start();
+        while (primary.size() < 1000)
+            Thread.yield();
+        assertTrue(primary.removeBackup(backup));
+        putter.join();
+        assertEquals(0, failures.get());
+        assertEquals(20000, primary.size());
+        assertTrue(r.await(0, TimeUnit.SECONDS));
+        assertEquals(r.getEnqueued(), r.getReplicated() + r.getDropped());
+
+        // a put that still sees the closed replicator
+        primary.addBackup(r);
+        primary.put("after close".getBytes(Repo.defaultCharset));
+        assertEquals(r.getEnqueued(), r.getReplicated() + r.getDropped());
+        assertTrue(r.await(0, TimeUnit.SECONDS));
+    }
+
+    public void testDropNewestWhenFull() throws Exception {
+        final Object gate = new Object();
+        Repo slow = new Repo() {
+            @Override
+            protected void storeBatch(Map<ContentId, byte[]> batch) {
+                synchronized (gate) {
+                    super.storeBatch(batch);
+                }
+            }
+        };
+        Repo primary = new Repo();
+        Replicator r = primary.addBackup(new Replicator(slow, 10, 1, Replicator.Overflow.DROP_NEWEST, 1));
+        synchronized (gate) {
+            for (int i = 0; i < 100; i++)
+                primary.put(("value " + i).getBytes(Repo.defaultCharset));
+        }
+        r.flush();
+        assertTrue(r.getDropped() > 0);
+        assertEquals(100, r.getDropped() + r.getReplicated());
+        assertEquals(r.getReplicated(), slow.size());
+    }
+
+    public void testFailedBatchesAreRetried() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        Repo flaky = new Repo() {
+            @Override
+            protected void storeBatch(Map<ContentId, byte[]> batch) {
+                if (failures.getAndDecrement() > 0)
+                    throw new RuntimeException("backup unavailable");
+                super.storeBatch(batch);
+            }
+        };
+        Repo primary = new Repo();
+        Replicator r = primary.addBackup(flaky);
+        primary.put("retried".getBytes(Repo.defaultCharset));
+        r.flush();
+        assertEquals(1, flaky.size());
+        assertEquals(2, r.getRetries());
+        assertEquals(0, r.getFailed());
+    }
+}
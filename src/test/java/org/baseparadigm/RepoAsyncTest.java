@@ -0,0 +1,79 @@
+package org.baseparadigm;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RepoAsyncTest extends TestCase {
+
+    public void testReadsFanOutInParallel() throws Exception {
+        final int n = 32;
+        // every read waits until all of them have started
+        final CountDownLatch started = new CountDownLatch(n);
+        Repo slow = new Repo() {
+            @Override
+            public byte[] get(Object key) {
+                started.countDown();
+                try {
+                    started.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.get(key);
+            }
+        };
+        RepoAsync async = new RepoAsync(slow);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < n; i++)
+            ids.add(slow.put(("value " + i).getBytes(Repo.defaultCharset)));
+        ids.add(slow.idFor("missing".getBytes(Repo.defaultCharset)));
+        Map<ContentId, byte[]> values = async.getAllAsync(ids).get(10, TimeUnit.SECONDS);
+        assertEquals(0, started.getCount());
+        assertEquals(n, values.size());
+        assertEquals(ids.subList(0, n), new ArrayList<ContentId>(values.keySet()));
+    }
+
+    public void testPutsAndInflation() throws Exception {
+        Repo repo = new Repo();
+        RepoAsync async = new RepoAsync(repo);
+        ContentId a = async.putAsync("a".getBytes(Repo.defaultCharset)).get();
+        ContentId b = async.putAsync(new ByteArrayInputStream("b".getBytes(Repo.defaultCharset))).get();
+        assertTrue(Arrays.equals("b".getBytes(Repo.defaultCharset), async.getAsync(b).get()));
+        SetDatum members = new SetDatum(repo);
+        for (int i = 0; i < 20; i++) {
+            GraphDatum gd = new GraphDatum(repo);
+            for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+                gd.build(spo, a);
+            members.add(gd.build(SubjectPredicateObject.OBJECTS, repo.put(("o" + i).getBytes(Repo.defaultCharset))).getId());
+        }
+        GraphData data = new GraphData(members.buildFinish());
+        List<GraphDatum> inflated = async.inflateAsync(data).get();
+        assertEquals(20, inflated.size());
+        int i = 0;
+        for (GraphDatum gd : data)
+            assertEquals(gd.getId(), inflated.get(i++).getId());
+    }
+
+    public void testFailuresCompleteExceptionally() throws InterruptedException {
+        Repo broken = new Repo() {
+            @Override
+            public byte[] get(Object key) {
+                throw new IllegalStateException("disk on fire");
+            }
+        };
+        RepoAsync async = new RepoAsync(broken);
+        try {
+            async.getAsync(broken.idFor(new byte[1])).get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class RepoCacheTest extends TestCase {
+    private final AtomicInteger reads = new AtomicInteger();
+    private final Repo backing = new Repo() {
+        @Override
+        public byte[] get(Object key) {
+            reads.incrementAndGet();
+            return super.get(key);
+        }
+        @Override
+        public Map<ContentId, byte[]> getAll(Iterable<ContentId> keys) {
+            batches.incrementAndGet();
+            return super.getAll(keys);
+        }
+    };
+    private final AtomicInteger batches = new AtomicInteger();
+
+    private static byte[] value(int i, int size) {
+        byte[] v = new byte[size];
+        Arrays.fill(v, (byte) i);
+        v[0] = (byte) (i >> 8);
+        return v;
+    }
+
+    public void testReadsThroughOnceAndCountsHits() {
+        RepoCache cache = new RepoCache(backing);
+        ContentId inBacking = backing.put(value(1, 100));
+        ContentId id = cache.idFor(value(1, 100));
+        assertTrue(Arrays.equals(value(1, 100), cache.get(id)));
+        assertTrue(Arrays.equals(value(1, 100), cache.get(id)));
+        assertTrue(Arrays.equals(value(1, 100), cache.get(inBacking)));
+        assertEquals(1, reads.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertNull(cache.get(cache.idFor(value(2, 100))));
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testPutsGoThroughAndAreCached() {
+        RepoCache cache = new RepoCache(backing);
+        ContentId id = cache.put(value(3, 10));
+        assertTrue(backing.containsKey(backing.idFor(value(3, 10))));
+        assertTrue(cache.containsKey(id));
+        assertTrue(Arrays.equals(value(3, 10), cache.get(id)));
+        assertEquals(0, reads.get());
+        assertEquals(1, cache.keySet().size());
+        assertEquals(id, cache.keySet().iterator().next());
+    }
+
+    public void testLruBoundsEntriesAndBytes() {
+        RepoCache cache = new RepoCache(backing, 10, 1000, RepoCache.Eviction.LRU);
+        for (int i = 0; i < 20; i++)
+            cache.put(value(i, 50));
+        assertEquals(10, cache.getCachedEntries());
+        assertEquals(10, cache.getEvictions());
+        for (int i = 0; i < 20; i++)
+            cache.put(value(100 + i, 300));
+        assertTrue(cache.getCachedBytes() <= 1000);
+        assertEquals(3, cache.getCachedEntries());
+        // too big to ever cache
+        ContentId huge = cache.put(value(7, 2000));
+        assertTrue(cache.getCachedBytes() <= 1000);
+        reads.set(0);
+        cache.get(huge);
+        assertEquals(1, reads.get());
+    }
+
+    public void testTinyLfuKeepsHotValuesThroughAScan() {
+        int capacity = 100;
+        RepoCache lru = new RepoCache(backing, capacity, Long.MAX_VALUE, RepoCache.Eviction.LRU);
+        RepoCache lfu = new RepoCache(backing, capacity, Long.MAX_VALUE, RepoCache.Eviction.W_TINY_LFU);
+        List<byte[]> hot = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++)
+            hot.add(value(i, 20));
+        for (byte[] v : hot)
+            backing.put(v);
+        for (int round = 0; round < 5; round++)
+            for (byte[] v : hot) {
+                lru.get(lru.idFor(v));
+                lfu.get(lfu.idFor(v));
+            }
+        // a one time scan over many cold values
+        for (int i = 0; i < 1000; i++) {
+            byte[] cold = value(1000 + i, 20);
+            backing.put(cold);
+            lru.get(lru.idFor(cold));
+            lfu.get(lfu.idFor(cold));
+        }
+        reads.set(0);
+        for (byte[] v : hot)
+            lfu.get(lfu.idFor(v));
+        int lfuReads = reads.getAndSet(0);
+        for (byte[] v : hot)
+            lru.get(lru.idFor(v));
+        int lruReads = reads.get();
+        assertEquals(hot.size(), lruReads);
+        assertTrue("tiny lfu missed "+ lfuReads, lfuReads < hot.size() / 10);
+        assertTrue(lfu.getCachedEntries() <= capacity);
+    }
+
+    public void testDatumsReadThroughTheCache() {
+        RepoCache cache = new RepoCache(backing);
+        GraphDatum gd = new GraphDatum(cache);
+        for (SubjectPredicateObject spo : SubjectPredicateObject.values())
+            gd.build(spo, spo.name().getBytes(Repo.defaultCharset));
+        ContentId id = gd.getId();
+        reads.set(0);
+        for (int i = 0; i < 10; i++)
+            MapDatum.toMap(cache, id);
+        assertEquals(0, reads.get());
+    }
+
+    public void testGetAllReadsMissesTogether() {
+        RepoCache cache = new RepoCache(backing);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < 10; i++) {
+            backing.put(value(i, 10));
+            ids.add(cache.idFor(value(i, 10)));
+        }
+        cache.get(ids.get(3));
+        ids.add(cache.idFor(value(99, 10))); // never stored
+        reads.set(0);
+        Map<ContentId, byte[]> values = cache.getAll(ids);
+        assertEquals(1, batches.get());
+        assertEquals(10, reads.get());
+        assertEquals(ids.subList(0, 10), new ArrayList<ContentId>(values.keySet()));
+        for (int i = 0; i < 10; i++)
+            assertTrue(Arrays.equals(value(i, 10), values.get(ids.get(i))));
+        assertEquals(1, cache.getHits());
+        reads.set(0);
+        cache.getAll(ids.subList(0, 10));
+        assertEquals(0, reads.get());
+    }
+}
@@ -0,0 +1,91 @@
+package org.baseparadigm;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Hammers a single Repo from many threads and checks that no write is lost
+ * and that every id matches an independently computed digest.
+ */
+public class RepoConcurrencyTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int PUTS_PER_THREAD = 4000;
+    private static final int SHARED_VALUES = 500;
+
+    public void testConcurrentPutGetIdFor() throws Exception {
+        final Repo repo = new Repo();
+        final List<byte[]> shared = new ArrayList<byte[]>();
+        for (int i = 0; i < SHARED_VALUES; i++)
+            shared.add(("shared-" + i).getBytes(Repo.defaultCharset));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<byte[]>>> results = new ArrayList<Future<List<byte[]>>>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(pool.submit(new Callable<List<byte[]>>() {
+                public List<byte[]> call() throws Exception {
+                    MessageDigest check = MessageDigest.getInstance(Repo.COMMONS_ID_ALGORITHM);
+                    Random rand = new Random(thread);
+                    List<byte[]> written = new ArrayList<byte[]>();
+                    start.await();
+                    for (int i = 0; i < PUTS_PER_THREAD; i++) {
+                        byte[] value = new byte[16 + rand.nextInt(256)];
+                        rand.nextBytes(value);
+                        value[0] = (byte) thread; // keep threads' values distinct
+                        byte[] sharedValue = shared.get(rand.nextInt(SHARED_VALUES));
+                        for (byte[] v : new byte[][]{ value, sharedValue }) {
+                            ContentId id = repo.put(v);
+                            assertEquals(new ContentId(repo, check.digest(v)), id);
+                            assertEquals(id, repo.idFor(v));
+                        }
+                        written.add(value);
+                    }
+                    return written;
+                }
+            }));
+        }
+        start.countDown();
+        List<byte[]> all = new ArrayList<byte[]>(shared);
+        for (Future<List<byte[]>> f : results)
+            all.addAll(f.get());
+        pool.shutdown();
+
+        MessageDigest check = MessageDigest.getInstance(Repo.COMMONS_ID_ALGORITHM);
+        for (byte[] v : all) {
+            byte[] stored = repo.get(new ContentId(repo, check.digest(v)));
+            assertNotNull("lost write", stored);
+            assertTrue(java.util.Arrays.equals(v, stored));
+        }
+        assertEquals(all.size(), repo.size());
+    }
+
+    public void testPutAllHashesInParallelAndKeepsOrder() {
+        Repo repo = new Repo();
+        List<byte[]> values = new ArrayList<byte[]>();
+        Random rand = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            byte[] v = new byte[32];
+            rand.nextBytes(v);
+            values.add(v);
+            if (i % 10 == 0)
+                values.add(v); // duplicates keep their place in the result
+        }
+        List<ContentId> ids = repo.putAll(values);
+        assertEquals(values.size(), ids.size());
+        for (int i = 0; i < values.size(); i++) {
+            assertEquals(repo.idFor(values.get(i)), ids.get(i));
+            assertTrue(java.util.Arrays.equals(values.get(i), repo.get(ids.get(i))));
+        }
+        assertEquals(10000, repo.size());
+    }
+}
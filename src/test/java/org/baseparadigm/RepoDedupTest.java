@@ -0,0 +1,80 @@
+package org.baseparadigm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class RepoDedupTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("dedup").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(Repo.defaultCharset);
+    }
+
+    public void testRepeatedPutsAreNotStoredOrReplicatedAgain() throws Exception {
+        final AtomicInteger stores = new AtomicInteger();
+        Repo repo = new Repo() {
+            @Override
+            protected byte[] store(ContentId key, byte[] value) {
+                stores.incrementAndGet();
+                return super.store(key, value);
+            }
+        };
+        Replicator r = repo.addBackup(new Repo());
+        for (int i = 0; i < 10; i++)
+            repo.put(bytes("same"));
+        repo.put(bytes("other"));
+        assertEquals(2, stores.get());
+        assertTrue(repo.awaitBackups(10, TimeUnit.SECONDS));
+        assertEquals(2, r.getEnqueued());
+        assertEquals(2, repo.getStoredCount());
+        assertEquals(9, repo.getDeduplicatedCount());
+        assertEquals(9 / 11.0, repo.getDedupRatio(), 1e-9);
+    }
+
+    public void testOverlappingBulkIngest() {
+        Repo repo = new Repo();
+        List<byte[]> first = new ArrayList<byte[]>();
+        List<byte[]> second = new ArrayList<byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            first.add(bytes("value " + i));
+            second.add(bytes("value " + (i + 500)));
+        }
+        repo.putAll(first);
+        repo.putAll(second);
+        assertEquals(1500, repo.size());
+        assertEquals(1500, repo.getStoredCount());
+        assertEquals(500, repo.getDeduplicatedCount());
+    }
+
+    public void testRepoFsSkipsExistingFiles() throws IOException {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        ContentId id = repo.put(bytes("content"));
+        File f = repo.fileName(id);
+        assertTrue(f.setLastModified(1000));
+        repo.put(bytes("content"));
+        assertEquals(id, repo.put(new ByteArrayInputStream(bytes("content"))));
+        assertEquals(1000, f.lastModified());
+        assertEquals(1, repo.getStoredCount());
+        assertEquals(2, repo.getDeduplicatedCount());
+        for (File child : dir.listFiles())
+            assertTrue(child.getName(), child.isDirectory());
+    }
+}
@@ -0,0 +1,207 @@
+package org.baseparadigm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class RepoFsTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("repofs").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static byte[] random(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    public void testStreamingPutMatchesArrayPut() throws IOException {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        byte[] big = random(3 << 20, 1);
+        ContentId streamed = repo.put(new ByteArrayInputStream(big));
+        assertEquals(repo.idFor(big), streamed);
+        assertTrue(Arrays.equals(big, repo.get(streamed)));
+        // nothing but the content directories is left behind
+        for (File f : dir.listFiles())
+            assertTrue(f.getName(), f.isDirectory());
+
+        InputStream in = repo.openStream(streamed);
+        try {
+            assertTrue(Arrays.equals(big, Util.drain(in)));
+        } finally {
+            in.close();
+        }
+        FileChannel ch = repo.openChannel(streamed);
+        try {
+            assertEquals(big.length, ch.size());
+            ByteBuffer tail = ByteBuffer.allocate(16);
+            ch.read(tail, big.length - 16);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(big, big.length - 16, big.length), tail.array()));
+        } finally {
+            ch.close();
+        }
+    }
+
+    public void testMissingValues() throws IOException {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        ContentId missing = repo.idFor("never stored".getBytes(Repo.defaultCharset));
+        assertNull(repo.get(missing));
+        assertNull(repo.openStream(missing));
+        assertNull(repo.openChannel(missing));
+    }
+
+    public void testMissesDontTouchTheFileSystem() {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        ContentId stored = repo.put("stored".getBytes(Repo.defaultCharset));
+        assertTrue(repo.containsKey(stored));
+        int dirs = dir.list().length;
+        for (int i = 0; i < 1000; i++) {
+            ContentId missing = repo.idFor(("missing " + i).getBytes(Repo.defaultCharset));
+            assertFalse(repo.containsKey(missing));
+            assertNull(repo.get(missing));
+        }
+        assertEquals(dirs, dir.list().length);
+    }
+
+    public void testFilterIsSavedOnCloseAndRebuiltAfterACrash() throws IOException {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < 500; i++)
+            ids.add(repo.put(random(10, i)));
+        repo.close();
+        File saved = new File(dir, RepoFs.FILTER_FILE);
+        assertTrue(saved.exists());
+
+        RepoFs reopened = new RepoFs(dir, RepoFs.HEX_NAMER);
+        // deleted once loaded, so a crash from here on forces a rebuild
+        assertFalse(saved.exists());
+        for (ContentId id : ids)
+            assertTrue(reopened.containsKey(id.in(reopened)));
+        ContentId later = reopened.put(random(10, 1000));
+
+        RepoFs rebuilt = new RepoFs(dir, RepoFs.HEX_NAMER);
+        for (ContentId id : ids)
+            assertTrue(rebuilt.containsKey(id.in(rebuilt)));
+        assertTrue(rebuilt.containsKey(later.in(rebuilt)));
+        assertFalse(rebuilt.containsKey(rebuilt.idFor(random(10, 2000))));
+    }
+
+    public void testRebuildWithNamesThatDontReverseHasNoFalseNegatives() {
+        // reverses only some of its own names
+        RepoFs.Namer partial = new RepoFs.Namer() {
+            public String name(byte[] cid) {
+                return RepoFs.HEX_NAMER.name(cid);
+            }
+            public byte[] reverse(String name) {
+                return name.charAt(0) < '8' ? RepoFs.HEX_NAMER.reverse(name) : null;
+            }
+        };
+        RepoFs repo = new RepoFs(dir, partial);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < 100; i++)
+            ids.add(repo.put(random(10, i)));
+
+        RepoFs rebuilt = new RepoFs(dir, partial);
+        for (ContentId id : ids) {
+            assertTrue(rebuilt.containsKey(id.in(rebuilt)));
+            assertNotNull(rebuilt.get(id.in(rebuilt)));
+        }
+    }
+
+    public void testBloomFilterFalsePositiveRate() {
+        Repo repo = new Repo();
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+            filter.add(repo.idFor(("in " + i).getBytes(Repo.defaultCharset)));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(repo.idFor(("in " + i).getBytes(Repo.defaultCharset))));
+            if (filter.mightContain(repo.idFor(("out " + i).getBytes(Repo.defaultCharset))))
+                falsePositives++;
+        }
+        assertTrue(falsePositives +" false positives", falsePositives < 200);
+    }
+
+    public void testStreamedValuesReplicate() throws Exception {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        Repo backup = new Repo();
+        repo.addBackup(backup);
+        byte[] value = random(100000, 2);
+        ContentId id = repo.put(new ByteArrayInputStream(value));
+        assertTrue(repo.awaitBackups(10, TimeUnit.SECONDS));
+        assertEquals(1, repo.getReplicators().get(0).getReplicated());
+        assertTrue(Arrays.equals(value, backup.get(backup.idFor(value))));
+        assertEquals(id.toBigInteger(), backup.idFor(value).toBigInteger());
+    }
+
+    public void testDefaultStreamsReadTheValue() throws IOException {
+        Repo repo = new Repo();
+        byte[] value = random(1000, 3);
+        ContentId id = repo.put(new ByteArrayInputStream(value));
+        assertTrue(Arrays.equals(value, Util.drain(repo.openStream(id))));
+        assertNull(repo.openStream(repo.idFor(new byte[1])));
+    }
+
+    public void testGetAllKeepsKeyOrderAndSkipsMissing() {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        List<ContentId> ids = new ArrayList<ContentId>();
+        for (int i = 0; i < 300; i++)
+            ids.add(repo.put(random(100, i)));
+        for (int i = 0; i < 20; i++)
+            ids.add(repo.idFor(random(100, 1000 + i)));
+        Collections.shuffle(ids, new Random(4));
+        Map<ContentId, byte[]> values = repo.getAll(ids);
+        assertEquals(300, values.size());
+        List<ContentId> stored = new ArrayList<ContentId>();
+        for (ContentId id : ids)
+            if (repo.containsKey(id))
+                stored.add(id);
+        assertEquals(stored, new ArrayList<ContentId>(values.keySet()));
+        for (Map.Entry<ContentId, byte[]> e : values.entrySet())
+            assertTrue(Arrays.equals(repo.get(e.getKey()), e.getValue()));
+        assertTrue(repo.getAll(Collections.<ContentId>emptyList()).isEmpty());
+    }
+
+    public void testFailedWriteIsNotTakenAsStored() throws IOException {
+        RepoFs repo = new RepoFs(dir, RepoFs.HEX_NAMER);
+        byte[] value = random(100, 2);
+        ContentId id = repo.idFor(value);
+        // a file where the value's directory should be
+        File blocker = repo.fileName(id).getParentFile();
+        assertTrue(blocker.createNewFile());
+        try {
+            repo.put(id, value);
+            fail();
+        } catch (RuntimeException expected) {}
+        assertEquals(0, repo.getStoredCount());
+        assertFalse(repo.containsKey(id));
+        for (File f : dir.listFiles())
+            assertEquals(blocker, f);
+
+        assertTrue(blocker.delete());
+        repo.put(id, value);
+        assertEquals(1, repo.getStoredCount());
+        assertTrue(Arrays.equals(value, repo.get(id)));
+    }
+}
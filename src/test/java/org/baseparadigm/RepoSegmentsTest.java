@@ -0,0 +1,115 @@
+package org.baseparadigm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RepoSegmentsTest extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory("segments").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    public void testPutGetAcrossSegmentsAndRecover() {
+        // small segments so the values spill over several files
+        RepoSegments repo = new RepoSegments(dir, 4096);
+        Random rand = new Random(3);
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            byte[] v = new byte[rand.nextInt(500)];
+            rand.nextBytes(v);
+            values.add(v);
+            repo.put(v);
+            repo.put(v); // a second put is a no-op
+        }
+        assertTrue(dir.list().length > 1);
+        assertEquals(200, repo.size());
+        for (byte[] v : values) {
+            ContentId id = repo.idFor(v);
+            assertTrue(Arrays.equals(v, repo.get(id)));
+            ByteBuffer view = repo.getBuffer(id);
+            assertTrue(view.isReadOnly());
+            assertEquals(v.length, view.remaining());
+        }
+        repo.close();
+
+        RepoSegments reopened = new RepoSegments(dir, 4096);
+        assertEquals(200, reopened.size());
+        for (byte[] v : values)
+            assertTrue(Arrays.equals(v, reopened.get(reopened.idFor(v))));
+        byte[] more = "appended after recovery".getBytes(Repo.defaultCharset);
+        ContentId id = reopened.put(more);
+        assertTrue(Arrays.equals(more, reopened.get(id)));
+        assertNull(reopened.get(reopened.idFor("never stored".getBytes(Repo.defaultCharset))));
+    }
+
+    public void testViewsSeeTheSegments() {
+        RepoSegments repo = new RepoSegments(dir, 4096);
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++) {
+            byte[] v = ("value " + i).getBytes(Repo.defaultCharset);
+            values.add(v);
+            repo.put(v);
+        }
+        assertEquals(50, repo.entrySet().size());
+        int entries = 0;
+        for (Map.Entry<ContentId, byte[]> e : repo.entrySet()) {
+            assertEquals(repo.idFor(e.getValue()), e.getKey());
+            entries++;
+        }
+        assertEquals(50, entries);
+        int found = 0;
+        for (byte[] v : repo.values())
+            for (byte[] expected : values)
+                if (Arrays.equals(expected, v))
+                    found++;
+        assertEquals(50, found);
+        assertTrue(repo.containsValue(values.get(7).clone()));
+        assertFalse(repo.containsValue("not stored".getBytes(Repo.defaultCharset)));
+        try {
+            repo.values().iterator().remove();
+            fail();
+        } catch (UnsupportedOperationException expected) {}
+        repo.close();
+    }
+
+    public void testRecoveryStopsAtARecordThatDoesNotMatchItsId() throws IOException {
+        RepoSegments repo = new RepoSegments(dir, 4096);
+        byte[] a = "first".getBytes(Repo.defaultCharset);
+        byte[] b = "second".getBytes(Repo.defaultCharset);
+        byte[] c = "third".getBytes(Repo.defaultCharset);
+        repo.put(a);
+        repo.put(b);
+        repo.put(c);
+        repo.close();
+        // a length and id in front of a garbage body, as a power loss can leave
+        File segment = new File(dir, "segment-00000000.dat");
+        byte[] bytes = Files.readAllBytes(segment.toPath());
+        int bodyOfB = (4 + repo.keyLength + a.length) + 4 + repo.keyLength;
+        bytes[bodyOfB] ^= 1;
+        Files.write(segment.toPath(), bytes);
+
+        RepoSegments reopened = new RepoSegments(dir, 4096);
+        assertEquals(1, reopened.size());
+        assertTrue(Arrays.equals(a, reopened.get(reopened.idFor(a))));
+        assertNull(reopened.get(reopened.idFor(b)));
+        assertNull(reopened.get(reopened.idFor(c)));
+        ContentId id = reopened.put(b);
+        assertTrue(Arrays.equals(b, reopened.get(id)));
+    }
+}
@@ -0,0 +1,136 @@
+package org.baseparadigm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class SetDatumTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    private SetDatum stored(int members, TreeSet<ContentId> expected) {
+        SetDatum building = new SetDatum(repo);
+        for (int i = 0; i < members; i++) {
+            ContentId id = repo.put(("member " + i).getBytes(Repo.defaultCharset));
+            building.add(id);
+            expected.add(id);
+        }
+        return new SetDatum(repo, repo.put(building.buildFinish()));
+    }
+
+    public void testLazyViewMatchesEagerSet() {
+        TreeSet<ContentId> expected = new TreeSet<ContentId>();
+        SetDatum lazy = stored(300, expected);
+        assertFalse(lazy.isMutable);
+        assertEquals(expected.size(), lazy.size());
+        assertEquals(new ArrayList<ContentId>(expected), new ArrayList<ContentId>(lazy));
+        assertEquals(expected.first(), lazy.first());
+        assertEquals(expected.last(), lazy.last());
+        for (ContentId id : expected)
+            assertTrue(lazy.contains(id));
+        assertFalse(lazy.contains(repo.idFor("not a member".getBytes(Repo.defaultCharset))));
+        assertEquals(expected, SetDatum.toSet(repo, repo.idFor(lazy)));
+        assertTrue(Arrays.equals(new SetDatum(expected).toByteArray(), lazy.toByteArray()));
+    }
+
+    public void testRangeViews() {
+        TreeSet<ContentId> expected = new TreeSet<ContentId>();
+        SetDatum lazy = stored(200, expected);
+        List<ContentId> probes = new ArrayList<ContentId>(expected);
+        Random rand = new Random(11);
+        for (int i = 0; i < 8; i++)
+            probes.add(repo.idFor(("probe " + i).getBytes(Repo.defaultCharset)));
+        for (int i = 0; i < 200; i++) {
+            ContentId a = probes.get(rand.nextInt(probes.size()));
+            ContentId b = probes.get(rand.nextInt(probes.size()));
+            if (a.compareTo(b) > 0) {
+                ContentId t = a; a = b; b = t;
+            }
+            assertEquals(expected.headSet(a), lazy.headSet(a));
+            assertEquals(expected.tailSet(a), lazy.tailSet(a));
+            SortedSet<ContentId> sub = lazy.subSet(a, b);
+            assertEquals(expected.subSet(a, b), sub);
+            assertEquals(expected.subSet(a, b).size(), sub.size());
+        }
+    }
+
+    public void testViewIsReadOnly() {
+        SetDatum lazy = stored(3, new TreeSet<ContentId>());
+        try {
+            lazy.add(repo.idFor(new byte[]{1}));
+            fail();
+        } catch (UnsupportedOperationException expected) {}
+    }
+
+    private SetDatum randomIds(int members, long seed) {
+        Random r = new Random(seed);
+        TreeSet<ContentId> ids = new TreeSet<ContentId>();
+        while (ids.size() < members) {
+            byte[] id = new byte[repo.keyLength];
+            r.nextBytes(id);
+            ids.add(ContentId.wrap(repo, id));
+        }
+        return new SetDatum(ids);
+    }
+
+    public void testCompressedEncodingRoundTrips() {
+        TreeSet<ContentId> expected = new TreeSet<ContentId>();
+        SetDatum original = stored(300, expected);
+        byte[] encoded = original.toCompressedByteArray();
+        SetDatum compressed = SetDatum.viewCompressed(repo, ByteBuffer.wrap(encoded));
+        assertEquals(expected.size(), compressed.size());
+        assertEquals(new ArrayList<ContentId>(expected), new ArrayList<ContentId>(compressed));
+        assertEquals(expected.first(), compressed.first());
+        assertEquals(expected.last(), compressed.last());
+        for (ContentId id : expected)
+            assertTrue(compressed.contains(id));
+        assertFalse(compressed.contains(repo.idFor("not a member".getBytes(Repo.defaultCharset))));
+        // ids are over the canonical form
+        assertTrue(Arrays.equals(original.toByteArray(), compressed.toByteArray()));
+        assertEquals(original.getId(), compressed.getId());
+        List<ContentId> sorted = new ArrayList<ContentId>(expected);
+        assertEquals(expected.subSet(sorted.get(10), sorted.get(200)),
+                compressed.subSet(sorted.get(10), sorted.get(200)));
+
+        SetDatum none = SetDatum.viewCompressed(repo, ByteBuffer.wrap(new SetDatum(repo).toCompressedByteArray()));
+        assertTrue(none.isEmpty());
+        assertFalse(none.contains(sorted.get(0)));
+    }
+
+    public void testCompressedBlocksDecodeOnTheirOwn() {
+        SetDatum set = randomIds(1000, 5);
+        CompressedIdSet compressed = new CompressedIdSet(repo, ByteBuffer.wrap(set.toCompressedByteArray()));
+        assertEquals((1000 + CompressedIdSet.DEFAULT_BLOCK_SIZE - 1) / CompressedIdSet.DEFAULT_BLOCK_SIZE,
+                compressed.blockCount());
+        byte[] canonical = set.toByteArray();
+        int blockBytes = CompressedIdSet.DEFAULT_BLOCK_SIZE * repo.keyLength;
+        for (int b = compressed.blockCount() - 1; b >= 0; b--)
+            assertTrue(Arrays.equals(
+                    Arrays.copyOfRange(canonical, b * blockBytes, Math.min(canonical.length, (b + 1) * blockBytes)),
+                    compressed.decodeBlock(b)));
+    }
+
+    public void testCompressedEncodingIsSmallerForLargeSets() {
+        SetDatum set = randomIds(100000, 6);
+        int compressed = set.toCompressedByteArray().length;
+        assertTrue(compressed +" bytes", compressed < set.toByteArray().length);
+    }
+
+    public void testCompressedVersionIsChecked() {
+        byte[] encoded = randomIds(10, 7).toCompressedByteArray();
+        encoded[CompressedIdSet.MAGIC.length] = 2;
+        try {
+            SetDatum.viewCompressed(repo, ByteBuffer.wrap(encoded));
+            fail();
+        } catch (IllegalArgumentException expected) {}
+        try {
+            SetDatum.viewCompressed(repo, ByteBuffer.wrap(randomIds(10, 7).toByteArray()));
+            fail();
+        } catch (IllegalArgumentException expected) {}
+    }
+}
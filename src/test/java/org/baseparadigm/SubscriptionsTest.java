@@ -0,0 +1,245 @@
+package org.baseparadigm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class SubscriptionsTest extends TestCase {
+    private final Repo repo = new Repo();
+
+    private ContentId word(String s) {
+        return repo.put(s.getBytes(Repo.defaultCharset));
+    }
+
+    private GraphDatum triple(int i) {
+        return new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s" + i % 101))
+                .build(SubjectPredicateObject.PREDICATES, word("p" + i % 5))
+                .build(SubjectPredicateObject.OBJECTS, word("o" + i));
+    }
+
+    /**
+     * Collects everything delivered, and the size of each batch.
+     */
+    private static class Collector implements Subscriptions.Listener {
+        final List<GraphDatum> got = Collections.synchronizedList(new ArrayList<GraphDatum>());
+        final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        public void deliver(List<GraphDatum> matches) {
+            batches.add(matches.size());
+            got.addAll(matches);
+        }
+    }
+
+    /**
+     * Partially matches data with the given object, but has no template
+     * terms to be filed under.
+     */
+    private static class ObjectPattern implements Pattern {
+        final ContentId object;
+        ObjectPattern(ContentId object) {
+            this.object = object;
+        }
+        public boolean isPartialMatch(GraphDatum g) {
+            return g.get(SubjectPredicateObject.OBJECTS).contains(object);
+        }
+        public boolean isPartialMatch(GraphData g) {
+            throw new UnsupportedOperationException();
+        }
+        public boolean isCompleteMatch(GraphData g) {
+            throw new UnsupportedOperationException();
+        }
+        public Iterator<GraphData> partialMatch(GraphData g) {
+            throw new UnsupportedOperationException();
+        }
+        public Iterator<GraphData> completeMatch(GraphData g) {
+            throw new UnsupportedOperationException();
+        }
+        public void init(ContentId cid) {
+            throw new UnsupportedOperationException();
+        }
+        public ContentId stuff(Repo r) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void testTemplateMatchesAreDeliveredInOrder() throws InterruptedException {
+        Graph g = new Graph(repo);
+        Subscriptions subs = new Subscriptions(g);
+        Collector s7p2 = new Collector();
+        subs.subscribe(new GraphDatum(repo)
+                .build(SubjectPredicateObject.SUBJECTS, word("s7"))
+                .build(SubjectPredicateObject.PREDICATES, word("p2")), s7p2);
+        Collector p2 = new Collector();
+        subs.subscribe(new GraphDatum(repo).build(SubjectPredicateObject.PREDICATES, word("p2")), p2);
+        List<GraphDatum> expected = new ArrayList<GraphDatum>();
+        for (int i = 0; i < 5000; i++) {
+            GraphDatum gd = triple(i);
+            g.add(gd);
+            if (i % 101 == 7 && i % 5 == 2)
+                expected.add(gd);
+        }
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertEquals(expected.size(), s7p2.got.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).getId(), s7p2.got.get(i).getId());
+        assertEquals(1000, p2.got.size());
+        subs.close();
+    }
+
+    public void testOnlyCandidatesFromTheRarestTermAreEvaluated() throws InterruptedException {
+        Graph g = new Graph(repo);
+        // make the predicates common before subscribing, so subjects are rarer
+        for (int i = 0; i < 1000; i++)
+            g.add(triple(i));
+        Subscriptions subs = new Subscriptions(g);
+        List<Collector> collectors = new ArrayList<Collector>();
+        for (int s = 0; s < 101; s++) {
+            Collector c = new Collector();
+            collectors.add(c);
+            subs.subscribe(new GraphDatum(repo)
+                    .build(SubjectPredicateObject.SUBJECTS, word("s" + s))
+                    .build(SubjectPredicateObject.PREDICATES, word("p" + s % 5)), c);
+        }
+        for (int i = 1000; i < 6000; i++)
+            g.add(triple(i));
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        // each datum is tried against the one subscription for its subject
+        assertEquals(5000, subs.getEvaluated());
+        for (int s = 0; s < 101; s++) {
+            int expected = 0;
+            for (int i = 1000; i < 6000; i++)
+                if (i % 101 == s && i % 5 == s % 5)
+                    expected++;
+            assertEquals(expected, collectors.get(s).got.size());
+        }
+        subs.close();
+    }
+
+    public void testPatternSubscriptionAndCancel() throws InterruptedException {
+        Graph g = new Graph(repo);
+        Subscriptions subs = new Subscriptions(g);
+        Collector c = new Collector();
+        Subscriptions.Subscription s = subs.subscribe(new ObjectPattern(word("o42")), c);
+        for (int i = 0; i < 100; i++)
+            g.add(triple(i));
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertEquals(1, c.got.size());
+        assertEquals(word("o42"), c.got.get(0).get(SubjectPredicateObject.OBJECTS).iterator().next());
+        assertEquals(100, subs.getEvaluated());
+
+        s.cancel();
+        g.add(triple(1042).build(SubjectPredicateObject.OBJECTS, word("o42")));
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertEquals(1, c.got.size());
+        assertEquals(0, s.getLag());
+        subs.close();
+        try {
+            subs.subscribe(new ObjectPattern(word("o1")), c);
+            fail();
+        } catch (IllegalStateException expected) {}
+        // the graph can take new subscriptions once these are closed
+        new Subscriptions(g).close();
+    }
+
+    public void testCommittedIngestDataArePublished() throws InterruptedException {
+        Graph g = new Graph(repo);
+        Subscriptions subs = new Subscriptions(g);
+        Collector p1 = new Collector();
+        subs.subscribe(new GraphDatum(repo).build(SubjectPredicateObject.PREDICATES, word("p1")), p1);
+        GraphIngest ingest = new GraphIngest(g, 3, 100);
+        for (int i = 0; i < 2000; i++)
+            ingest.add(triple(i));
+        ingest.close();
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertEquals(400, p1.got.size());
+        for (GraphDatum gd : p1.got)
+            assertTrue(g.isIndexed(gd.getId()));
+        subs.close();
+    }
+
+    public void testSlowListenerDropsNewestMatches() throws InterruptedException {
+        Graph g = new Graph(repo);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Subscriptions subs = new Subscriptions(g, 10, 4, Replicator.Overflow.DROP_NEWEST, executor);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Collector c = new Collector();
+        Subscriptions.Subscription s = subs.subscribe(new ObjectPattern(word("o0")) {
+            @Override
+            public boolean isPartialMatch(GraphDatum g) {
+                return true;
+            }
+        }, new Subscriptions.Listener() {
+            public void deliver(List<GraphDatum> matches) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                c.deliver(matches);
+            }
+        });
+        for (int i = 0; i < 200; i++)
+            g.add(triple(i));
+        // the dispatcher has to have caught up before the listener is let go
+        long deadline = System.currentTimeMillis() + 10000;
+        while (subs.getEvaluated() + subs.getDropped() < 200 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        release.countDown();
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertTrue(s.getDropped() + subs.getDropped() > 0);
+        assertEquals(200, s.getMatched() + subs.getDropped());
+        assertEquals(s.getMatched() - s.getDropped(), c.got.size());
+        for (int batch : c.batches)
+            assertTrue(batch <= 4);
+        subs.close();
+        executor.shutdown();
+    }
+
+    public void testListenerThatAddsDoesNotStallTheGraph() throws InterruptedException {
+        final Graph g = new Graph(repo);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // as little room as there can be, so every queue fills up
+        Subscriptions subs = new Subscriptions(g, 1, 1, Replicator.Overflow.BLOCK, executor);
+        final Collector echoes = new Collector();
+        final ContentId echoed = word("echo");
+        subs.subscribe(new ObjectPattern(null) {
+            @Override
+            public boolean isPartialMatch(GraphDatum g) {
+                return ! g.get(SubjectPredicateObject.PREDICATES).contains(echoed);
+            }
+        }, new Subscriptions.Listener() {
+            public void deliver(List<GraphDatum> matches) {
+                for (GraphDatum gd : matches) {
+                    GraphDatum echo = new GraphDatum(repo)
+                            .build(SubjectPredicateObject.SUBJECTS, gd.getId())
+                            .build(SubjectPredicateObject.PREDICATES, echoed);
+                    g.add(echo);
+                    echoes.got.add(echo);
+                }
+            }
+        });
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 500; i++)
+                    g.add(triple(i));
+            }
+        };
+        adder.start();
+        adder.join(10000);
+        assertFalse("adding stalled behind the listener", adder.isAlive());
+        assertTrue(subs.await(10, TimeUnit.SECONDS));
+        assertEquals(500, echoes.got.size());
+        for (GraphDatum echo : echoes.got)
+            assertTrue(g.isIndexed(echo.getId()));
+        subs.close();
+        executor.shutdown();
+    }
+}
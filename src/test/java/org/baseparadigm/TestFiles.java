@@ -0,0 +1,16 @@
+package org.baseparadigm;
+
+import java.io.File;
+
+/**
+ * File helpers shared by tests that need a scratch directory.
+ */
+class TestFiles {
+    static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+}